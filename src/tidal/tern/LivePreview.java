@@ -0,0 +1,177 @@
+/*
+ * @(#) LivePreview.java
+ * 
+ * Tern Tangible Programming Language
+ * Copyright (c) 2011 Michael S. Horn
+ * 
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package tidal.tern;
+
+import java.io.IOException;
+import java.util.List;
+
+import tidal.tern.compiler.CompileException;
+import tidal.tern.compiler.Program;
+import topcodes.ScanPipeline;
+import topcodes.Scanner;
+import topcodes.TopCode;
+import android.hardware.Camera;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+
+/**
+ * Live recognition mode: scans camera preview frames as they arrive
+ * instead of taking a picture.  The luma plane of each (NV21) preview
+ * frame goes straight to a ScanPipeline, so nothing is written to disk
+ * and no bitmap is decoded.  Whenever the frames show a new program,
+ * it is handed to Tern to run.
+ */
+public class LivePreview implements SurfaceHolder.Callback,
+                                    Camera.PreviewCallback,
+                                    ScanPipeline.Listener {
+
+   public final String TAG = "TernMob";
+
+   protected Tern tern;
+
+   protected SurfaceHolder holder;
+
+   protected Camera camera = null;
+
+   /** Scans frames in the background, dropping frames when busy */
+   protected ScanPipeline pipeline;
+
+   /** Size of the preview frames */
+   protected int width, height;
+
+   /** Whether the preview surface exists */
+   protected boolean surface = false;
+
+   /** Whether live mode has been turned on */
+   protected volatile boolean enabled = false;
+
+   /** Assembly code of the last program handed to Tern */
+   protected String pcode = null;
+
+
+   public LivePreview(Tern tern, SurfaceView view) {
+      this.tern = tern;
+      this.holder = view.getHolder();
+      this.holder.addCallback(this);
+      this.holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
+      this.pipeline = new ScanPipeline(new Scanner(), this);
+   }
+
+
+   public boolean isEnabled() {
+      return this.enabled;
+   }
+
+
+   public void start() {
+      this.enabled = true;
+      this.pcode = null;
+      if (surface) openCamera();
+   }
+
+
+   public void stop() {
+      this.enabled = false;
+      closeCamera();
+   }
+
+
+   protected void openCamera() {
+      if (camera != null) return;
+      try {
+         camera = Camera.open();
+         camera.setPreviewDisplay(holder);
+         Camera.Size size = camera.getParameters().getPreviewSize();
+         this.width = size.width;
+         this.height = size.height;
+         pipeline.start();
+         camera.setPreviewCallback(this);
+         camera.startPreview();
+      } catch (IOException iox) {
+         Log.e(TAG, "Unable to start camera preview", iox);
+         closeCamera();
+      } catch (RuntimeException rx) {
+         Log.e(TAG, "Unable to open camera", rx);
+         closeCamera();
+      }
+   }
+
+
+   protected void closeCamera() {
+      pipeline.stop();
+      if (camera != null) {
+         camera.setPreviewCallback(null);
+         camera.stopPreview();
+         camera.release();
+         camera = null;
+      }
+   }
+
+
+   public void onPreviewFrame(byte[] data, Camera camera) {
+      pipeline.offer(data, width, height);
+   }
+
+
+   public void codesFound(List<TopCode> codes, int width, int height) {
+      
+      // The pipeline reuses its codes, but programs keep theirs
+      List<TopCode> copy = new java.util.ArrayList<TopCode>(codes.size());
+      for (TopCode top : codes) {
+         copy.add(new TopCode(top));
+      }
+      
+      try {
+         Program program = tern.compiler.compile(copy, width, height);
+         String code = program.getAssemblyCode();
+         if (program.hasStartStatement() && !code.equals(pcode)) {
+            this.pcode = code;
+            tern.programRecognized(program);
+         }
+      } catch (CompileException cx) {
+         Log.e(TAG, cx.getMessage());
+      }
+   }
+
+
+   public void frameReleased(byte[] frame) { }
+
+
+   public void surfaceCreated(SurfaceHolder holder) {
+      this.surface = true;
+      if (enabled) openCamera();
+   }
+
+
+   public void surfaceDestroyed(SurfaceHolder holder) {
+      this.surface = false;
+      closeCamera();
+   }
+
+
+   public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) { }
+}
@@ -146,6 +146,7 @@ public class Roberto extends View implements Debugger {
       int action = event.getAction();
       if (action == MotionEvent.ACTION_DOWN) {
          this.tsensor = true;
+         tern.interp.wake();
          if (reIntrep) { clearAnimation(); tern.finishCompile(true); }
 		   
       } else if (action == MotionEvent.ACTION_UP) {
@@ -48,6 +48,8 @@ import android.os.Message;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images.Media;
 import android.util.Log;
+import android.view.KeyEvent;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
@@ -93,6 +95,9 @@ public class Tern extends Activity implements OnClickListener, Runnable {
    /** Robot that "executes" the interpreter commands */
    protected Roberto roberto;
    
+   /** Recognizes programs in camera preview frames (live mode) */
+   protected LivePreview live;
+   
 
 //----------------------------------------------------------------   
 // onCreate
@@ -123,11 +128,30 @@ public class Tern extends Activity implements OnClickListener, Runnable {
       this.roberto.setTern(this);
       this.interp.addDebugger(roberto);
       this.interp.setRobot(roberto);
+      
+      this.live = new LivePreview(this, (SurfaceView)findViewById(R.id.Preview));
    }
    
    
    protected void onPause() {
       super.onPause();
+      live.stop();
+   }
+   
+   
+//----------------------------------------------------------------
+// onKeyDown -- The camera key turns live recognition on and off
+//----------------------------------------------------------------   
+   public boolean onKeyDown(int keyCode, KeyEvent event) {
+      if (keyCode == KeyEvent.KEYCODE_CAMERA) {
+         if (live.isEnabled()) {
+            live.stop();
+         } else if (!compiling) {
+            live.start();
+         }
+         return true;
+      }
+      return super.onKeyDown(keyCode, event);
    }
     
    @Override
@@ -146,7 +170,7 @@ public class Tern extends Activity implements OnClickListener, Runnable {
 // onClick -- Called by the compile/camera button
 //----------------------------------------------------------------   
    public void onClick(View view) {
-      if (compiling) return;
+      if (compiling || live.isEnabled()) return;
       try {
          Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
          intent.putExtra(MediaStore.EXTRA_OUTPUT, Uri.fromFile(temp));
@@ -216,7 +240,27 @@ public class Tern extends Activity implements OnClickListener, Runnable {
       //this.roberto.invalidate();
       
       if (!success) return;
-      
+      runProgram();
+   }
+   
+   
+/**
+ * Called by live mode (on its own thread) when a new program is
+ * recognized in the camera preview
+ */
+   public void programRecognized(final Program program) {
+      handler.post(new Runnable() {
+         public void run() {
+            if (live.isEnabled()) {
+               Tern.this.program = program;
+               runProgram();
+            }
+         }
+      });
+   }
+   
+   
+   protected void runProgram() {
       Log.i(TAG, "Compile Finished");
       Log.i(TAG, program.getTextCode());
       Log.i(TAG, program.getAssemblyCode());
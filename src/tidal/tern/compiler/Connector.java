@@ -46,6 +46,7 @@ import topcodes.TopCode;
    protected float dx, dy;
    protected Statement parent;
    protected Statement other;
+   protected float tx, ty;   // target point cached by locate()
    
    
    public Connector(Statement parent, int type) {
@@ -126,10 +127,43 @@ import topcodes.TopCode;
       return (float)(y + dx * d * Math.sin(o) + dy * d * Math.cos(o));
    }
    
+/**
+ * Computes this connector's target point once and caches it for
+ * getLocatedX() and getLocatedY().
+ */
+   public void locate() {
+      TopCode top = this.parent.getTopCode();
+      float d = top.getDiameter();
+      double cos = Math.cos(top.getOrientation());
+      double sin = Math.sin(top.getOrientation());
+      this.tx = (float)(top.getCenterX() + dx * d * cos - dy * d * sin);
+      this.ty = (float)(top.getCenterY() + dx * d * sin + dy * d * cos);
+   }
+   
+   public float getLocatedX() {
+      return this.tx;
+   }
+   
+   public float getLocatedY() {
+      return this.ty;
+   }
+   
+/**
+ * Returns how far another connector's target may be from this one's
+ * and still overlap it
+ */
+   public float getReach() {
+      return this.parent.getTopCode().getDiameter() * 0.8f;
+   }
+   
+   public Statement getParent() {
+      return this.parent;
+   }
+   
    public boolean overlaps(Connector other) {
       float tx = (other.getTargetX() - getTargetX());
       float ty = (other.getTargetY() - getTargetY());
-      float r = this.parent.getTopCode().getDiameter() * 0.8f;
+      float r = getReach();
       return ((tx * tx + ty * ty) <= (r * r));
    }
    
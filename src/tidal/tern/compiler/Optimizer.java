@@ -0,0 +1,276 @@
+/*
+ * @(#) Optimizer.java
+ *
+ * Tern Tangible Programming Language
+ * Copyright (c) 2011 Michael S. Horn
+ *
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package tidal.tern.compiler;
+
+import java.util.List;
+
+
+
+/**
+ * Peephole optimizer for the assembly code generated by TextCompiler.
+ * The output is still assembly code that the interpreter loads as
+ * usual.  It makes these changes:
+ * <ul>
+ * <li>Constant expressions (push a / push b / +) are folded into a
+ *     single push, and branches on a constant condition are replaced
+ *     by a goto or removed.
+ * <li>push N / load-global and push N / store-global become
+ *     load-global N and store-global N.
+ * <li>load-address :L followed by goto, if-false, or if-timer becomes
+ *     goto :L, if-false :L, or if-timer :L.
+ * <li>Unreachable code after stop, exit, return, or goto is removed,
+ *     along with gotos to the very next instruction.
+ * </ul>
+ * Nothing is moved across a label, so every jump target still sees the
+ * same stack.
+ *
+ * @author Michael Horn
+ */
+public class Optimizer {
+
+   /** Number of instructions before the last optimization */
+   protected int icount;
+
+   /** Number of instructions after the last optimization */
+   protected int ocount;
+
+
+   public Optimizer() {
+      this.icount = 0;
+      this.ocount = 0;
+   }
+
+
+/**
+ * Returns an optimized version of the given assembly code
+ */
+   public String optimize(String pcode) {
+      List<String> lines = new java.util.ArrayList<String>();
+      for (String line : pcode.split("\n")) {
+         line = line.trim();
+         if (line.length() > 0) lines.add(line);
+      }
+      this.icount = count(lines);
+
+      lines = removeDeadCode(rewrite(lines));
+      this.ocount = count(lines);
+
+      StringBuilder out = new StringBuilder();
+      for (String line : lines) {
+         out.append(line).append('\n');
+      }
+      return out.toString();
+   }
+
+
+/**
+ * Returns the number of instructions in the code passed to the last
+ * call to optimize()
+ */
+   public int getInputCount() {
+      return this.icount;
+   }
+
+
+/**
+ * Returns the number of instructions in the code returned by the last
+ * call to optimize()
+ */
+   public int getOutputCount() {
+      return this.ocount;
+   }
+
+
+/**
+ * Counts the instructions in a block of assembly code (labels and
+ * comments aren't instructions)
+ */
+   public static int count(String pcode) {
+      List<String> lines = new java.util.ArrayList<String>();
+      for (String line : pcode.split("\n")) {
+         lines.add(line.trim());
+      }
+      return count(lines);
+   }
+
+
+   protected static int count(List<String> lines) {
+      int n = 0;
+      for (String line : lines) {
+         if (line.length() > 0 && !isLabel(line) && !line.startsWith(";")) n++;
+      }
+      return n;
+   }
+
+
+/**
+ * Copies the code, applying the rewrite rules to the end of the output
+ * after each instruction until none of them matches
+ */
+   protected List<String> rewrite(List<String> lines) {
+      List<String> out = new java.util.ArrayList<String>(lines.size());
+      for (String line : lines) {
+         out.add(line);
+         while (reduce(out)) { }
+      }
+      return out;
+   }
+
+
+   protected boolean reduce(List<String> out) {
+      int n = out.size();
+      String last = out.get(n - 1);
+      String prev = (n > 1)? out.get(n - 2) : "";
+      String prev2 = (n > 2)? out.get(n - 3) : "";
+
+      // push a / push b / op  -->  push (a op b)
+      if (isConstant(prev2) && isConstant(prev)) {
+         Integer value = fold(last, constant(prev2), constant(prev));
+         if (value != null) {
+            replace(out, 3, "push " + value);
+            return true;
+         }
+      }
+
+      // push a / not  -->  push !a
+      if (isConstant(prev) && last.equals("not")) {
+         replace(out, 2, "push " + ((constant(prev) == 0)? 1 : 0));
+         return true;
+      }
+
+      // push N / load-global  -->  load-global N
+      if (isConstant(prev) && (last.equals("load-global") || last.equals("store-global"))) {
+         replace(out, 2, last + " " + constant(prev));
+         return true;
+      }
+
+      // load-address :L / goto  -->  goto :L
+      if (prev.startsWith("load-address ") &&
+          (last.equals("goto") || last.equals("if-false") || last.equals("if-timer"))) {
+         replace(out, 2, last + " " + operand(prev));
+         return true;
+      }
+
+      // push c / if-false :L  -->  goto :L (or nothing)
+      if (isConstant(prev) && last.startsWith("if-false ")) {
+         if (constant(prev) == 0) {
+            replace(out, 2, "goto " + operand(last));
+         } else {
+            replace(out, 2, null);
+         }
+         return true;
+      }
+      return false;
+   }
+
+
+/**
+ * Drops instructions that can't be reached: everything between an
+ * unconditional transfer (stop, exit, return, goto) and the next label
+ * or entry point.  Gotos that jump to the next instruction go too.
+ */
+   protected List<String> removeDeadCode(List<String> lines) {
+      List<String> out = new java.util.ArrayList<String>(lines.size());
+      boolean live = true;
+      for (String line : lines) {
+         if (isLabel(line) || line.startsWith("process") || line.startsWith("function ")) {
+            live = true;
+         }
+         if (live) {
+            out.add(line);
+            live = !(line.equals("stop") || line.equals("exit") ||
+                     line.equals("return") || line.startsWith("goto "));
+         }
+      }
+
+      for (int i=out.size()-1; i>=0; i--) {
+         String line = out.get(i);
+         if (line.startsWith("goto ")) {
+            for (int j=i+1; j<out.size() && isLabel(out.get(j)); j++) {
+               if (out.get(j).equals(operand(line))) {
+                  out.remove(i);
+                  break;
+               }
+            }
+         }
+      }
+      return out;
+   }
+
+
+/**
+ * Returns the value of a binary operator applied to two constants, or
+ * null if the instruction isn't one that can be folded
+ */
+   protected static Integer fold(String op, int a, int b) {
+      if (op.equals("+"))   return a + b;
+      if (op.equals("-"))   return a - b;
+      if (op.equals("*"))   return a * b;
+      if (op.equals("/"))   return (b == 0)? null : Integer.valueOf(a / b);  // divide by zero is reported at runtime
+      if (op.equals("="))   return (a == b)? 1 : 0;
+      if (op.equals("!="))  return (a != b)? 1 : 0;
+      if (op.equals(">"))   return (a > b)? 1 : 0;
+      if (op.equals("<"))   return (a < b)? 1 : 0;
+      if (op.equals(">="))  return (a >= b)? 1 : 0;
+      if (op.equals("<="))  return (a <= b)? 1 : 0;
+      if (op.equals("and")) return (a != 0 && b != 0)? 1 : 0;
+      if (op.equals("or"))  return (a != 0 || b != 0)? 1 : 0;
+      return null;
+   }
+
+
+   protected static void replace(List<String> out, int count, String line) {
+      for (int i=0; i<count; i++) {
+         out.remove(out.size() - 1);
+      }
+      if (line != null) out.add(line);
+   }
+
+
+   protected static boolean isLabel(String line) {
+      return line.startsWith(":");
+   }
+
+
+   protected static boolean isConstant(String line) {
+      if (!line.startsWith("push ")) return false;
+      try {
+         Integer.parseInt(operand(line));
+         return true;
+      } catch (NumberFormatException nfx) {
+         return false;
+      }
+   }
+
+
+   protected static int constant(String line) {
+      return Integer.parseInt(operand(line));
+   }
+
+
+   protected static String operand(String line) {
+      return line.substring(line.indexOf(' ') + 1).trim();
+   }
+}
@@ -0,0 +1,101 @@
+package tidal.tern.compiler;
+
+import junit.framework.TestCase;
+
+
+
+public class OptimizerTest extends TestCase {
+
+   protected TextCompiler compiler = new TextCompiler();
+
+   protected Optimizer optimizer = new Optimizer();
+
+
+   protected String optimize(String tcode) throws Exception {
+      return optimizer.optimize(compiler.compile(tcode));
+   }
+
+
+   public void testConstantFolding() throws Exception {
+      assertEquals("push 10\nprint\npush 0\nprint\n", optimize(
+         "print 5 + 5\n" +
+         "print not (3 > 2)\n"));
+      assertEquals("push 7\npush 0\n/\nprint\n", optimize("print 7 / 0\n"));
+      assertEquals("push 2\npush 0\nrand\nprint\n",
+                   optimizer.optimize("push 2\npush 0\nrand\nprint\n"));
+   }
+
+
+   public void testGlobals() throws Exception {
+      assertEquals(
+         "push 1\nstore-global 0\n" +
+         "load-global 0\npush 1\n+\nstore-global 1\n" +
+         "load-global 1\nprint\n", optimize(
+         "a = 1\n" +
+         "b = a + 1\n" +
+         "print b\n"));
+   }
+
+
+   public void testJumps() throws Exception {
+      assertEquals(
+         "push 0\n" +
+         "store-global 0\n" +
+         "process main\n" +
+         ":while0\n" +
+         "load-global 0\n" +
+         "if-false :done0\n" +
+         "push 100\n" +
+         "timer\n" +
+         ":sleep1\n" +
+         "yield\n" +
+         "if-timer :done1\n" +
+         "goto :sleep1\n" +
+         ":done1\n" +
+         "goto :while0\n" +
+         ":done0\n" +
+         "stop\n", optimize(
+         "a = 0\n" +
+         "process main:\n{\n" +
+         "   while a:\n" +
+         "   {\n" +
+         "      wait 100\n" +
+         "   }\n" +
+         "}\n"));
+   }
+
+
+   public void testConstantConditions() throws Exception {
+      assertEquals(":while0\npush 1\nprint\ngoto :while0\n:done0\n", optimize(
+         "while true:\n{\n   print 1\n}\n"));
+      assertEquals(":while0\n:done0\n", optimize(
+         "while false:\n{\n   print 1\n}\n"));
+   }
+
+
+   public void testDeadCode() throws Exception {
+      assertEquals(
+         "process main\npush 1\nprint\nstop\n", optimize(
+         "process main:\n{\n" +
+         "   print 1\n" +
+         "   stop\n" +
+         "   print 2\n" +
+         "}\n"));
+      assertEquals("process main\nexit\n:done0\nreturn\n", optimizer.optimize(
+         "process main\nexit\npush 1\nprint\n:done0\nreturn\npush 0\n"));
+   }
+
+
+   public void testCounts() throws Exception {
+      String pcode = compiler.compile(
+         "process main:\n{\n" +
+         "   wait 100\n" +
+         "   print 2 * 3\n" +
+         "}\n");
+      assertEquals(13, Optimizer.count(pcode));
+      String result = optimizer.optimize(pcode);
+      assertEquals(13, optimizer.getInputCount());
+      assertEquals(9, optimizer.getOutputCount());
+      assertEquals(9, Optimizer.count(result));
+   }
+}
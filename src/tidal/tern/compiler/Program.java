@@ -25,7 +25,9 @@
 package tidal.tern.compiler;
 
 import java.util.List;
+import java.util.Map;
 import android.graphics.RectF;
+import topcodes.SpatialGrid;
 
 
 
@@ -86,6 +88,108 @@ public class Program {
 	}
 
 
+/**
+ * Connects chains of statements together.  Each connector's target
+ * point is computed once, incoming sockets are bucketed in a spatial
+ * grid, and every outgoing plug is joined to the nearest socket of
+ * another statement that it overlaps.
+ */
+   public void connect() {
+      List<Connector> plugs = new java.util.ArrayList<Connector>();
+      List<Connector> near = new java.util.ArrayList<Connector>();
+      float reach = 0;
+      float xhigh = 0, yhigh = 0;
+
+      for (Statement s : statements) {
+         if (!s.hasTopCode()) continue;
+         for (Connector c : s.getConnectors()) {
+            if (c.isOutgoing() || c.isIncoming()) {
+               c.locate();
+               xhigh = Math.max(xhigh, c.getLocatedX());
+               yhigh = Math.max(yhigh, c.getLocatedY());
+               if (c.isIncoming()) reach = Math.max(reach, c.getReach());
+            }
+         }
+      }
+      if (reach <= 0) return;
+
+      SpatialGrid<Connector> sockets = new SpatialGrid<Connector>(xhigh, yhigh, reach);
+      for (Statement s : statements) {
+         if (!s.hasTopCode()) continue;
+         for (Connector c : s.getConnectors()) {
+            if (c.isIncoming()) {
+               sockets.add(c, c.getLocatedX(), c.getLocatedY());
+            } else if (c.isOutgoing()) {
+               plugs.add(c);
+            }
+         }
+      }
+
+      for (Connector plug : plugs) {
+         Connector best = null;
+         float min = 0;
+         near.clear();
+         sockets.query(plug.getLocatedX(), plug.getLocatedY(), reach, near);
+         for (Connector socket : near) {
+            if (socket.getParent() == plug.getParent()) continue;
+            float tx = socket.getLocatedX() - plug.getLocatedX();
+            float ty = socket.getLocatedY() - plug.getLocatedY();
+            float d = tx * tx + ty * ty;
+            float r = socket.getReach();
+            if (d <= r * r && (best == null || d < min)) {
+               best = socket;
+               min = d;
+            }
+         }
+         if (best != null) {
+            plug.setConnection(best.getParent());
+            best.setConnection(plug.getParent());
+         }
+      }
+   }
+
+
+/**
+ * Returns a string that identifies the statements reachable from the
+ * start statements and how they are connected.  Two programs with the
+ * same fingerprint compile to the same code.
+ */
+   public String getFingerprint() {
+      StringBuilder sb = new StringBuilder();
+      Map<Statement, Integer> visited = new java.util.HashMap<Statement, Integer>();
+      sb.append(StatementFactory.getGeneration());
+      for (Statement s : statements) {
+         if (s.isStartStatement()) {
+            sb.append(';');
+            fingerprint(s, sb, visited);
+         }
+      }
+      return sb.toString();
+   }
+
+
+   private void fingerprint(Statement s, StringBuilder sb, Map<Statement, Integer> visited) {
+      Integer id = visited.get(s);
+      if (id != null) {
+         sb.append('@').append(id);
+         return;
+      }
+      visited.put(s, visited.size());
+      sb.append(s.getCode()).append('(');
+      for (Connector c : s.getConnectors()) {
+         if (c.isOutgoing()) {
+            if (c.hasConnection()) {
+               fingerprint(c.getConnection(), sb, visited);
+            } else {
+               sb.append('-');
+            }
+            sb.append(',');
+         }
+      }
+      sb.append(')');
+   }
+
+
    public boolean hasStartStatement() {
       for (Statement s : statements) {
          if (s.isStartStatement()) {
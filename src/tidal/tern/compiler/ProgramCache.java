@@ -0,0 +1,114 @@
+/*
+ * @(#) ProgramCache.java
+ * 
+ * Tern Tangible Programming Language
+ * Copyright (c) 2011 Michael S. Horn
+ * 
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package tidal.tern.compiler;
+
+import java.util.Map;
+
+
+
+/**
+ * Remembers the text and assembly code generated for recently compiled
+ * programs.  Programs are keyed by a fingerprint of their connected
+ * statements (see Program.getFingerprint), so taking another picture
+ * of the same program skips code generation and parsing.  The least
+ * recently used program is dropped when the cache is full.
+ *
+ * @author Michael Horn
+ */
+public class ProgramCache {
+
+   /** Maximum number of cached programs */
+   protected int capacity;
+
+   /** Text code and assembly code indexed by fingerprint */
+   protected Map<String, String[]> programs;
+
+   /** Number of lookups that found a program */
+   protected int hits;
+
+   /** Number of lookups that didn't */
+   protected int misses;
+
+
+   public ProgramCache(int capacity) {
+      this.capacity = capacity;
+      this.hits     = 0;
+      this.misses   = 0;
+      this.programs = new java.util.LinkedHashMap<String, String[]>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > ProgramCache.this.capacity;
+         }
+      };
+   }
+
+
+/**
+ * Fills in the text and assembly code of a program if one with the
+ * same fingerprint has been cached.  Returns true on a hit.
+ */
+   public synchronized boolean lookup(String fingerprint, Program program) {
+      String [] code = programs.get(fingerprint);
+      if (code == null) {
+         misses++;
+         return false;
+      } else {
+         hits++;
+         program.setTextCode(code[0]);
+         program.setAssemblyCode(code[1]);
+         return true;
+      }
+   }
+
+
+/**
+ * Remembers the text and assembly code of a compiled program
+ */
+   public synchronized void store(String fingerprint, Program program) {
+      if (capacity > 0) {
+         programs.put(fingerprint, new String[] {
+               program.getTextCode(), program.getAssemblyCode() });
+      }
+   }
+
+
+   public synchronized void clear() {
+      programs.clear();
+   }
+
+
+   public synchronized int size() {
+      return programs.size();
+   }
+
+
+   public synchronized int getHitCount() {
+      return this.hits;
+   }
+
+
+   public synchronized int getMissCount() {
+      return this.misses;
+   }
+}
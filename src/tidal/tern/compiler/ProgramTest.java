@@ -0,0 +1,141 @@
+package tidal.tern.compiler;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import topcodes.TopCode;
+
+
+
+public class ProgramTest extends TestCase {
+
+   protected static final float DIAMETER = 30;
+
+
+/**
+ * Creates a statement at (x, y) with a socket at its center and a plug
+ * 3.4 diameters to its right, like the action blocks
+ */
+   protected static Statement block(String name, float x, float y, float orientation) {
+      TopCode top = new TopCode();
+      top.setLocation(x, y);
+      top.setDiameter(DIAMETER);
+      top.setOrientation(orientation);
+      Statement s = new Statement(top);
+      s.setName(name);
+      s.addConnector(new Connector(s, Connector.TYPE_IN, "prev", 0, 0));
+      s.addConnector(new Connector(s, Connector.TYPE_OUT, "next", 3.4f, 0));
+      return s;
+   }
+
+
+   protected static Statement next(Statement s) {
+      for (Connector c : s.getConnectors()) {
+         if (c.isOutgoing()) return c.getConnection();
+      }
+      return null;
+   }
+
+
+/**
+ * Several chains of blocks must be connected the same way as by
+ * comparing every pair of statements
+ */
+   public void testConnectChains() throws Exception {
+      Program program = new Program();
+      Program expected = new Program();
+      for (int chain = 0; chain < 6; chain++) {
+         for (int i = 0; i < 8; i++) {
+            float x = 40 + i * DIAMETER * 3.4f + (i % 3);
+            float y = 60 + chain * 120 + (i % 2) * 4;
+            String name = chain + ":" + i;
+            program.addStatement(block(name, x, y, 0.02f * (i % 3)));
+            expected.addStatement(block(name, x, y, 0.02f * (i % 3)));
+         }
+      }
+
+      program.connect();
+      for (Statement a : expected.getStatements()) {
+         for (Statement b : expected.getStatements()) {
+            if (a != b) a.connect(b);
+         }
+      }
+
+      List<Statement> actual = program.getStatements();
+      int links = 0;
+      for (int i = 0; i < actual.size(); i++) {
+         Statement n = next(actual.get(i));
+         Statement e = next(expected.getStatements().get(i));
+         assertEquals(String.valueOf(e), String.valueOf(n));
+         if (n != null) links++;
+      }
+      assertEquals(6 * 7, links);
+   }
+
+
+   protected static Program chain(float x0, float y0, int [] codes) {
+      Program program = new Program();
+      for (int i = 0; i < codes.length; i++) {
+         Statement s = block("s" + i, x0 + i * DIAMETER * 3.4f, y0, 0);
+         s.getTopCode().setCode(codes[i]);
+         s.setStartStatement(i == 0);
+         program.addStatement(s);
+      }
+      program.connect();
+      return program;
+   }
+
+
+/**
+ * Moving a program changes nothing, but changing a block or a
+ * connection changes its fingerprint
+ */
+   public void testFingerprint() throws Exception {
+      String f = chain(50, 50, new int[] { 569, 307, 185, 369 }).getFingerprint();
+      assertEquals(f, chain(80, 200, new int[] { 569, 307, 185, 369 }).getFingerprint());
+      assertFalse(f.equals(chain(50, 50, new int[] { 569, 185, 307, 369 }).getFingerprint()));
+
+      Program broken = chain(50, 50, new int[] { 569, 307, 185, 369 });
+      broken.getStatements().get(1).getConnectors().get(1).setConnection(null);
+      assertFalse(f.equals(broken.getFingerprint()));
+   }
+
+
+   public void testProgramCache() throws Exception {
+      ProgramCache cache = new ProgramCache(2);
+      Program a = chain(50, 50, new int[] { 569, 307 });
+      a.setTextCode("a");
+      a.setAssemblyCode("pa");
+      cache.store("a", a);
+      cache.store("b", a);
+
+      Program p = new Program();
+      assertTrue(cache.lookup("a", p));
+      assertEquals("a", p.getTextCode());
+      assertEquals("pa", p.getAssemblyCode());
+
+      cache.store("c", a);                // evicts b, the least recently used
+      assertFalse(cache.lookup("b", p));
+      assertTrue(cache.lookup("a", p));
+      assertTrue(cache.lookup("c", p));
+      assertEquals(2, cache.size());
+      assertEquals(3, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+   }
+
+
+/**
+ * A plug overlapping two sockets is joined to the closer one
+ */
+   public void testConnectNearest() throws Exception {
+      Program program = new Program();
+      Statement a = block("a", 100, 100, 0);
+      Statement far = block("far", 100 + DIAMETER * 3.4f + 20, 100, 0);
+      Statement close = block("close", 100 + DIAMETER * 3.4f - 5, 100, 0);
+      program.addStatement(a);
+      program.addStatement(far);
+      program.addStatement(close);
+      program.connect();
+      assertSame(close, next(a));
+   }
+}
@@ -114,13 +114,13 @@ public class Statement {
  */
    public Statement newInstance(TopCode top) {
       try {
-         Statement s = this.getClass().newInstance();
+         Statement s = newStatement();
          s.top = top;
          s.name = this.name;
          s.text = this.text;
          s.start = this.start;
-         for (Connector c : connectors) {
-            s.addConnector(c.clone(s));
+         for (int i=0; i<connectors.size(); i++) {
+            s.addConnector(connectors.get(i).clone(s));
          }
          return s;
       } catch (Exception x) {
@@ -129,6 +129,20 @@ public class Statement {
    }
 
 
+/**
+ * Creates an empty statement of the same class as this one.  Subclasses
+ * should override this to call their own constructor; otherwise the
+ * instance is created through reflection.
+ */
+   protected Statement newStatement() throws Exception {
+      if (this.getClass() == Statement.class) {
+         return new Statement();
+      } else {
+         return this.getClass().newInstance();
+      }
+   }
+
+
    public String toString() {
       return getName();
    }
@@ -24,8 +24,6 @@
  */
 package tidal.tern.compiler;
 
-import java.util.List;
-
 import org.xmlpull.v1.XmlPullParser;
 
 import topcodes.TopCode;
@@ -36,7 +34,14 @@ import android.content.res.XmlResourceParser;
 public class StatementFactory {
 
 
-   protected static List<Statement> stypes = new java.util.ArrayList<Statement>();
+   /** Number of possible 13-bit TopCode values */
+   public static final int CODES = 1 << 13;
+
+   /** Prototype statements indexed by TopCode value (rebuilt by each load) */
+   protected static volatile Statement [] stypes = new Statement[CODES];
+
+   /** Incremented each time statements are loaded */
+   protected static volatile int generation = 0;
    
 	
 /**
@@ -44,12 +49,22 @@ public class StatementFactory {
  * from topcodes found in an image.
  */
    public static Statement createStatement(TopCode top) {
-      for (Statement s : stypes) {
-         if (s.getCode() == top.getCode()) {
-            return s.newInstance(top);
-         }
+      int code = top.getCode();
+      Statement [] types = stypes;
+      if (code < 0 || code >= CODES || types[code] == null) {
+         return null;
+      } else {
+         return types[code].newInstance(top);
       }
-      return null;
+   }
+   
+   
+/**
+ * Returns a number that changes whenever the statement definitions
+ * are reloaded
+ */
+   public static int getGeneration() {
+      return generation;
    }
    
    
@@ -57,7 +72,7 @@ public class StatementFactory {
  *  Load statements from XML resource file
  */
    public static void loadStatements(XmlResourceParser xml) throws CompileException {
-      stypes.clear();
+      Statement [] types = new Statement[CODES];
       
       try {
          Statement s = null;
@@ -86,7 +101,10 @@ public class StatementFactory {
                
                case XmlPullParser.END_TAG:
                   if ("statement".equals(xml.getName())) {
-                     stypes.add(s);
+                     int code = s.getCode();
+                     if (code >= 0 && code < CODES && types[code] == null) {
+                        types[code] = s;
+                     }
                      s = null;
                   }
                   break;
@@ -98,6 +116,9 @@ public class StatementFactory {
          }
       } catch (Exception x) {
          throw new CompileException(x);
+      } finally {
+         stypes = types;
+         generation++;
       }
    }
    
@@ -50,31 +50,95 @@ public class TangibleCompiler {
    /** Header include for generated text-based code */
    protected String header;
    
+   /** Header compiled once for all programs (null until needed) */
+   protected TextCompiler.Prelude prelude;
    
+   /** Recently compiled programs */
+   protected ProgramCache cache;
+   
+   /** Peephole optimizer for the generated assembly code */
+   protected Optimizer optimizer;
+   
+   /** Whether or not generated assembly code is optimized */
+   protected boolean optimize;
+   
+   /** Codes and open connector targets from the last picture */
+   protected List<TopCode> hints;
+   
+   /** Size of the last picture */
+   protected int hwidth, hheight;
+   
+   
+/**
+ * Creates a compiler whose scanner uses one thread per available
+ * processor (see Scanner.setThreadCount)
+ */
    public TangibleCompiler() {
       this.scanner    = new Scanner();
+      this.scanner.setThreadCount(Runtime.getRuntime().availableProcessors());
       this.tcompiler  = new TextCompiler();
       this.header     = "";
+      this.prelude    = null;
+      this.cache      = new ProgramCache(16);
+      this.optimizer  = new Optimizer();
+      this.optimize   = true;
+      this.hints      = null;
    }
    
    
    public void setHeader(String header) {
       this.header = header;
+      this.prelude = null;
+      this.cache.clear();
+   }
+   
+   
+   public ProgramCache getProgramCache() {
+      return this.cache;
    }
 
 
 /**
- * Tangible compile function: generate a program from a bitmap image
+ * Turns the assembly code optimizer on or off (it's on by default).
+ * The instruction counts before and after each optimization are
+ * logged, and are also available from getOptimizer().
  */
-   public Program compile(Bitmap image) throws CompileException {
-      
-      Program program = new Program();
+   public synchronized void setOptimizing(boolean optimize) {
+      this.optimize = optimize;
+      this.cache.clear();
+   }
+   
+   
+   public Optimizer getOptimizer() {
+      return this.optimizer;
+   }
+
 
+/**
+ * Tangible compile function: generate a program from a bitmap image
+ */
+   public synchronized Program compile(Bitmap image) throws CompileException {
       
       //-----------------------------------------------------------
       // 1. Create a list of topcodes from the bitmap image
       //-----------------------------------------------------------
-      List<TopCode> spots = scanner.scan(image);
+      List<TopCode> spots;
+      if (image.getWidth() == hwidth && image.getHeight() == hheight) {
+         spots = scanner.scan(image, hints);
+      } else {
+         spots = scanner.scan(image);
+      }
+      return compile(spots, image.getWidth(), image.getHeight());
+   }
+   
+   
+/**
+ * Generates a program from the topcodes found in an image of the given
+ * size (for example by a ScanPipeline scanning camera frames)
+ */
+   public synchronized Program compile(List<TopCode> spots, int width, int height)
+      throws CompileException {
+      Program program = new Program();
 
 
       //-----------------------------------------------------------
@@ -92,12 +156,12 @@ public class TangibleCompiler {
       //-----------------------------------------------------------
       // 3. Connect chains of statements together
       //-----------------------------------------------------------
-      for (Statement a : program.getStatements()) {
-         for (Statement b : program.getStatements()) {
-            if (a != b) {
-               a.connect(b);
-            }
-         }
+      program.connect();
+      rememberHints(width, height, spots, program);
+      
+      String fingerprint = program.getFingerprint();
+      if (cache.lookup(fingerprint, program)) {
+         return program;
       }
       
       
@@ -112,16 +176,50 @@ public class TangibleCompiler {
             s.compile(out);
          }
       }
-      String tcode = header + "\n" + sw.toString();
+      String body = sw.toString();
+      String tcode = header + "\n" + body;
       program.setTextCode(tcode);
 
       
       //-----------------------------------------------------------
       // 5. Convert the text-based code to assembly code
       //-----------------------------------------------------------
-      String pcode = tcompiler.compile(tcode);
+      if (prelude == null) {
+         prelude = tcompiler.compilePrelude(header + "\n");
+      }
+      String pcode = tcompiler.compile(prelude, body);
+      if (optimize) {
+         pcode = optimizer.optimize(pcode);
+         Log.i("TangibleCompiler", "Optimized: " + optimizer.getInputCount() +
+               " -> " + optimizer.getOutputCount() + " instructions");
+      }
       program.setAssemblyCode(pcode);
+      cache.store(fingerprint, program);
 
       return program;
    }
+
+
+/**
+ * Saves the codes found in this picture, along with the places where
+ * the next block of an unfinished chain would go, as hints for
+ * scanning the next picture
+ */
+   protected void rememberHints(int width, int height, List<TopCode> spots, Program program) {
+      this.hints = new java.util.ArrayList<TopCode>(spots);
+      this.hwidth = width;
+      this.hheight = height;
+      
+      for (Statement s : program.getStatements()) {
+         if (!s.hasTopCode()) continue;
+         for (Connector c : s.getConnectors()) {
+            if (c.isOutgoing() && !c.hasConnection()) {
+               TopCode target = new TopCode();
+               target.setLocation(c.getLocatedX(), c.getLocatedY());
+               target.setDiameter(s.getTopCode().getDiameter());
+               hints.add(target);
+            }
+         }
+      }
+   }
 }
\ No newline at end of file
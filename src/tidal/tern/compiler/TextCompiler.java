@@ -59,6 +59,29 @@ public class TextCompiler extends TernAnalyzer {
    
    private LinkedList<Integer> labels;
    
+   
+/**
+ * A header (such as the robot driver's imports) compiled once so that
+ * it can be placed in front of many programs without parsing it again.
+ * Holds the header's assembly code along with the global variables and
+ * label counter that the rest of the program continues from.
+ */
+   public static class Prelude {
+      
+      protected String source;
+      protected String pcode;
+      protected Map<String, Integer> globals;
+      protected int label_gen;
+      
+      public String getSource() {
+         return this.source;
+      }
+      
+      public String getAssemblyCode() {
+         return this.pcode;
+      }
+   }
+   
 
    public TextCompiler() {
       this.out = new StringWriter();
@@ -94,6 +117,46 @@ public class TextCompiler extends TernAnalyzer {
    }
    
    
+/**
+ * Compiles a header into a prelude for compile(Prelude, String)
+ */
+   public Prelude compilePrelude(String header) throws CompileException {
+      Prelude prelude = new Prelude();
+      prelude.source = header;
+      prelude.pcode = compile(header);
+      prelude.globals = new java.util.HashMap<String, Integer>(global.vars);
+      prelude.label_gen = this.label_gen;
+      return prelude;
+   }
+   
+   
+/**
+ * Compiles a program body as if it followed the prelude's header in the
+ * same source file.  Only the body is parsed; the result is the
+ * prelude's assembly code followed by the body's.  An empty body
+ * compiles to the prelude alone.
+ */
+   public String compile(Prelude prelude, String body) throws CompileException {
+      if (body.trim().length() == 0) return prelude.pcode;
+      try {
+         this.out = new StringWriter();
+         this.label_gen = prelude.label_gen;
+         this.labels.clear();
+         this.global.clear();
+         this.global.vars.putAll(prelude.globals);
+         this.local = null;
+         
+         TernParser parser = new TernParser(new StringReader(body), this);
+         parser.parse();
+         return prelude.pcode + this.out.toString();
+      } catch (ParserLogException plx) {
+         throw new CompileException(plx);
+      } catch (ParserCreationException pcx) {
+         throw new CompileException(pcx);
+      }
+   }
+   
+   
 //--------------------------------------------------------------------------
 // Processes
 //--------------------------------------------------------------------------
@@ -83,5 +83,27 @@ public class TextCompilerTest extends TestCase {
       runTests("tests/test6.tern");
    }
    
+    public void testPrelude() throws Exception {
+      String header =
+         "import doJump()\n" +
+         "import getTouchSensor()\n" +
+         "process idle:\n{\n   count = 0\n   wait 100\n}\n";
+      String body =
+         "process main:\n{\n" +
+         "   while not getTouchSensor():\n   {\n      wait 100\n   }\n" +
+         "   count = count + 1\n" +
+         "   doJump()\n" +
+         "}\n";
+      String expected = compiler.compile(header + "\n" + body);
+      
+      TextCompiler.Prelude prelude = compiler.compilePrelude(header + "\n");
+      assertEquals(expected, compiler.compile(prelude, body));
+      assertEquals(expected, compiler.compile(prelude, body));
+      
+      // a picture with no program is just the header
+      assertEquals(compiler.compile(header + "\n"), compiler.compile(prelude, ""));
+      assertEquals(compiler.compile(header + "\n"), compiler.compile(prelude, "\n"));
+   }
+   
 }
 
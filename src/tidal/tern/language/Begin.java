@@ -38,6 +38,11 @@ public class Begin extends Statement {
    }
 
 
+   protected Statement newStatement() {
+      return new Begin();
+   }
+
+
    public void compile(PrintWriter out) throws CompileException {
       out.println("process main:");
       out.println("{");
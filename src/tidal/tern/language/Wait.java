@@ -38,6 +38,11 @@ public class Wait extends Statement {
    }
 
 
+   protected Statement newStatement() {
+      return new Wait();
+   }
+
+
    public void compile(PrintWriter out) throws CompileException {
       out.println("while not getTouchSensor():");
       out.println("{");
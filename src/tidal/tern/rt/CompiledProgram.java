@@ -0,0 +1,277 @@
+/*
+ * @(#) CompiledProgram.java
+ *
+ * Tern Tangible Programming Language
+ * Copyright (c) 2011 Michael S. Horn
+ *
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package tidal.tern.rt;
+
+
+
+/**
+ * A loaded program compiled into a graph of small step objects, one
+ * per instruction.  Each step carries its constant operands and holds
+ * direct references to the step that follows it and to its jump target,
+ * so running a process is a chain of virtual calls with no opcode
+ * switch, operand arrays, or address lookups.
+ * <p>
+ * Processes remain resumable: a step that yields or stops records the
+ * address to continue from in the process's instruction pointer, and
+ * the next run starts again from the step at that address.
+ *
+ * @author Michael Horn
+ */
+public class CompiledProgram {
+
+/**
+ * One compiled instruction.  exec() returns the next step to run,
+ * SUSPEND to give up the processor, or null when the process stops.
+ */
+   static abstract class Step {
+      int addr;
+      Step next;
+      Step target;
+
+      abstract Step exec(Process p);
+   }
+
+
+   /** Returned by steps that yield to the scheduler */
+   static final Step SUSPEND = new Step() {
+      Step exec(Process p) { return this; }
+   };
+
+   /** Runs off the end of the program or jumps to a bad address */
+   static final Step END = new Step() {
+      Step exec(Process p) { p.ip = -1; return null; }
+   };
+
+
+   /** Compiled steps indexed by address */
+   protected Step [] steps;
+
+
+/**
+ * Compiles the instructions currently loaded in the interpreter
+ */
+   public CompiledProgram(Interpreter in) {
+      int count = in.icount;
+      this.steps = new Step[count];
+      for (int pc=0; pc<count; pc++) {
+         steps[pc] = compile(in, pc);
+         steps[pc].addr = pc;
+      }
+      for (int pc=0; pc<count; pc++) {
+         steps[pc].next = at(pc + 1);
+         steps[pc].target = at(in.args[pc]);
+      }
+   }
+
+
+/**
+ * Returns the step at the given address (END if there isn't one)
+ */
+   protected Step at(int addr) {
+      return (addr >= 0 && addr < steps.length)? steps[addr] : END;
+   }
+
+
+/**
+ * Runs a process until it yields or uses up its instruction budget
+ * (returns true) or stops (false)
+ */
+   public boolean run(Process p) {
+      Step s = at(p.ip);
+      while (s != null && s != END) {
+         if (p.left == 0) return p.preempt(s.addr);
+         p.left--;
+         s = s.exec(p);
+         if (s == SUSPEND) return true;
+      }
+      if (s == END) p.ip = -1;
+      return false;
+   }
+
+
+   private Step compile(final Interpreter in, int pc) {
+      final int arg = in.args[pc];
+      final String name = in.names[pc];
+
+      switch (in.ops[pc]) {
+
+      //-----------------------------------------------------
+      // Control flow
+      //-----------------------------------------------------
+      case Opcode.STOP:
+         return new Step() { Step exec(Process p) { p.STOP(); return null; } };
+      case Opcode.EXIT:
+         return new Step() { Step exec(Process p) { p.EXIT(); return null; } };
+      case Opcode.YIELD:
+         return new Step() { Step exec(Process p) { p.ip = addr + 1; return SUSPEND; } };
+      case Opcode.NOP:
+      case Opcode.FUNCTION:
+         return new Step() { Step exec(Process p) { return next; } };
+      case Opcode.PROCESS:
+         return new Step() { Step exec(Process p) { in.notifyProcessStarted(p); return next; } };
+
+      // starting or stopping processes by name may restart or stop this one
+      case Opcode.STOP_PROCESS:
+         return new Step() { Step exec(Process p) {
+            p.ip = addr + 1;
+            p.STOP(name);
+            return (p.ip == addr + 1)? next : at(p.ip);
+         } };
+      case Opcode.START:
+         return new Step() { Step exec(Process p) {
+            p.ip = addr + 1;
+            p.START(name);
+            return (p.ip == addr + 1)? next : at(p.ip);
+         } };
+
+      case Opcode.GOTO:
+         return new Step() { Step exec(Process p) { return at(p.pop()); } };
+      case Opcode.CALL:
+         return new Step() { Step exec(Process p) {
+            int dest = p.pop();
+            p.push(addr + 1);
+            return at(dest);
+         } };
+      case Opcode.RETURN:
+         return new Step() { Step exec(Process p) { p.RETURN(); return at(p.ip); } };
+      case Opcode.IF_TRUE:
+         return new Step() { Step exec(Process p) {
+            int dest = p.pop();
+            return (p.pop() != 0)? at(dest) : next;
+         } };
+      case Opcode.IF_FALSE:
+         return new Step() { Step exec(Process p) {
+            int dest = p.pop();
+            return (p.pop() == 0)? at(dest) : next;
+         } };
+      case Opcode.IF_TIMER:
+         return new Step() { Step exec(Process p) {
+            int dest = p.pop();
+            return (p.timer == 0)? at(dest) : next;
+         } };
+
+      // jumps with the target linked inline
+      case Opcode.JMP:
+         return new Step() { Step exec(Process p) {
+            if (arg < 0) p.ERROR("Invalid Address: " + name);
+            return target;
+         } };
+      case Opcode.JZ:
+         return new Step() { Step exec(Process p) {
+            if (arg < 0) p.ERROR("Invalid Address: " + name);
+            return (p.pop() == 0)? target : next;
+         } };
+      case Opcode.JNZ:
+         return new Step() { Step exec(Process p) {
+            if (arg < 0) p.ERROR("Invalid Address: " + name);
+            return (p.pop() != 0)? target : next;
+         } };
+      case Opcode.JTIMER:
+         return new Step() { Step exec(Process p) {
+            if (arg < 0) p.ERROR("Invalid Address: " + name);
+            return (p.timer == 0)? target : next;
+         } };
+      case Opcode.CALL_DIRECT:
+         return new Step() { Step exec(Process p) {
+            if (arg < 0) p.ERROR("Invalid Address: " + name);
+            p.push(addr + 1);
+            return target;
+         } };
+
+      //-----------------------------------------------------
+      // Stack, variables, and robot functions
+      //-----------------------------------------------------
+      case Opcode.PUSH:
+         return new Step() { Step exec(Process p) { p.push(arg); return next; } };
+      case Opcode.LOAD_ADDRESS:
+         return new Step() { Step exec(Process p) { p.LOAD_ADDRESS(arg, name); return next; } };
+      case Opcode.TRACE:
+         return new Step() { Step exec(Process p) { p.TRACE(name); return next; } };
+      case Opcode.REMOTE:
+         return new Step() { Step exec(Process p) { p.REMOTE(arg); return next; } };
+      case Opcode.PRINT:
+         return new Step() { Step exec(Process p) { p.PRINT(); return next; } };
+      case Opcode.FRAME:
+         return new Step() { Step exec(Process p) { p.FRAME(); return next; } };
+      case Opcode.POP:
+         return new Step() { Step exec(Process p) { p.pop(); return next; } };
+      case Opcode.DUP:
+         return new Step() { Step exec(Process p) { p.DUP(); return next; } };
+      case Opcode.LOAD_GLOBAL:
+         return new Step() { Step exec(Process p) { p.LOAD_GLOBAL(); return next; } };
+      case Opcode.STORE_GLOBAL:
+         return new Step() { Step exec(Process p) { p.STORE_GLOBAL(); return next; } };
+      case Opcode.LOAD_VAR:
+         return new Step() { Step exec(Process p) { p.push(in.getVar(arg)); return next; } };
+      case Opcode.STORE_VAR:
+         return new Step() { Step exec(Process p) { in.setVar(arg, p.pop()); return next; } };
+      case Opcode.LOAD_FRAME:
+         return new Step() { Step exec(Process p) { p.LOAD_FRAME(); return next; } };
+      case Opcode.STORE_FRAME:
+         return new Step() { Step exec(Process p) { p.STORE_FRAME(); return next; } };
+      case Opcode.TIMER:
+         return new Step() { Step exec(Process p) { p.TIMER(); return next; } };
+      case Opcode.RAND:
+         return new Step() { Step exec(Process p) { p.RAND(); return next; } };
+
+      //-----------------------------------------------------
+      // Operators
+      //-----------------------------------------------------
+      case Opcode.AND:
+         return new Step() { Step exec(Process p) { p.AND(); return next; } };
+      case Opcode.OR:
+         return new Step() { Step exec(Process p) { p.OR(); return next; } };
+      case Opcode.NOT:
+         return new Step() { Step exec(Process p) { p.NOT(); return next; } };
+      case Opcode.EQ:
+         return new Step() { Step exec(Process p) { p.EQ(); return next; } };
+      case Opcode.GT:
+         return new Step() { Step exec(Process p) { p.GT(); return next; } };
+      case Opcode.LT:
+         return new Step() { Step exec(Process p) { p.LT(); return next; } };
+      case Opcode.GTE:
+         return new Step() { Step exec(Process p) { p.GTE(); return next; } };
+      case Opcode.LTE:
+         return new Step() { Step exec(Process p) { p.LTE(); return next; } };
+      case Opcode.NE:
+         return new Step() { Step exec(Process p) { p.NE(); return next; } };
+      case Opcode.ADD:
+         return new Step() { Step exec(Process p) { p.ADD(); return next; } };
+      case Opcode.SUB:
+         return new Step() { Step exec(Process p) { p.SUB(); return next; } };
+      case Opcode.MULT:
+         return new Step() { Step exec(Process p) { p.MULT(); return next; } };
+      case Opcode.DIV:
+         return new Step() { Step exec(Process p) { p.DIV(); return next; } };
+
+      default:
+         return new Step() { Step exec(Process p) {
+            p.ip = addr + 1;
+            p.ERROR("Unknown opcode " + name);
+            return null;
+         } };
+      }
+   }
+}
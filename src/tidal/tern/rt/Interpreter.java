@@ -26,6 +26,8 @@ package tidal.tern.rt;
 
 import java.util.Map;
 import java.util.List;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.lang.reflect.Method;
 import java.io.Reader;
 import java.io.IOException;
@@ -41,11 +43,50 @@ public class Interpreter implements Runnable {
    /** Assembly instructions */
    protected List<String> code;
 
+   /** Pre-decoded opcodes, one per executable instruction */
+   protected int [] ops;
+
+   /** Integer operands (constants and resolved addresses) */
+   protected int [] args;
+
+   /** String operands (labels, process names, function names) */
+   protected String [] names;
+
+   /** Number of decoded instructions */
+   protected int icount;
+
+   /** Address of the first instruction after the last label */
+   protected int barrier;
+
+   /** Whether loaded programs are compiled rather than interpreted */
+   protected boolean compile;
+
+   /** Compiled version of the loaded program (or null) */
+   protected CompiledProgram compiled;
+
+   /** Maximum number of instructions a process runs per time slice */
+   protected int budget;
+
+   /** Default time slice budget */
+   public static final int SLICE_BUDGET = 1000;
+
+   /** Robot function names called by remote instructions */
+   protected List<String> fnames;
+
+   /** Robot methods indexed by function id (null if undefined) */
+   protected Method [] functions;
+
    /** All code is executed in semi-concurrent processes */
    protected List<Process> processes;
 
+   /** Sleeping processes ordered by wake-up deadline */
+   protected PriorityQueue<Process> timers;
+
    /** Global variables shared between processes */
-   protected List<Integer> vars;
+   protected int [] vars;
+
+   /** Number of global variables in use */
+   protected int vcount;
 
    /** Global labels / addresses for things like functions */
    protected Map<String, Integer> labels;
@@ -53,30 +94,70 @@ public class Interpreter implements Runnable {
    /** List of debuggers to send trace events */
    protected List<Debugger> debuggers;
 
-   /** Flag to stop the interpreter thread */
-   protected boolean stop;
+   /** Flag to stop the interpreter thread (set from other threads) */
+   protected volatile boolean stop;
 
    /** Whether or not processes are running */
-   protected boolean running;
+   protected volatile boolean running;
+
+   /** Set by an external event to wake the scheduler */
+   protected boolean signaled;
+
+   /** Time of the last scheduling pass (0 before the first one) */
+   protected long clock;
+
+   /** Host whose workers run this interpreter (null for its own thread) */
+   protected VMHost host;
+
+   /** Scheduling state on the host (see VMHost) */
+   protected int hostState;
+
+   /** Set when the interpreter is woken while a host worker runs it */
+   protected boolean woken;
 
 
    public Interpreter() {
       this.robot     = null;
       this.code      = new java.util.ArrayList<String>();
+      this.ops       = new int[64];
+      this.args      = new int[64];
+      this.names     = new String[64];
+      this.icount    = 0;
+      this.barrier   = 0;
+      this.compile   = false;
+      this.compiled  = null;
+      this.budget    = SLICE_BUDGET;
+      this.fnames    = new java.util.ArrayList<String>();
+      this.functions = new Method[0];
       this.processes = new java.util.ArrayList<Process>();
-      this.vars      = new java.util.ArrayList<Integer>();
+      this.timers    = new PriorityQueue<Process>(8, new Comparator<Process>() {
+         public int compare(Process a, Process b) {
+            return a.getTimer() - b.getTimer();
+         }
+      });
+      this.vars      = new int[16];
+      this.vcount    = 0;
       this.labels    = new java.util.HashMap<String, Integer>();
       this.debuggers = new java.util.ArrayList<Debugger>();
       this.stop      = false;
       this.running   = false;
+      this.signaled  = false;
+      this.clock     = 0;
+      this.host      = null;
+      this.hostState = VMHost.IDLE;
+      this.woken     = false;
    }
 
 
 /**
- * Start the interpreter in a separate thread
+ * Start the interpreter in a separate thread, or on its host's worker
+ * threads if it has been submitted to a VMHost
  */
    public synchronized void start() {
-      if (!running) {
+      if (running) return;
+      if (host != null) {
+         host.submit(this);
+      } else {
          this.running = true;
          (new Thread(this)).start();
       }
@@ -90,17 +171,41 @@ public class Interpreter implements Runnable {
       if (!running) return;
       this.stop = true;
       this.running = false;
+      notifyAll();
+      if (host != null) host.wake(this);
    }
 
 
 /**
- * Stops the interpreter and clears all code, processes, and variables
+ * Wakes the interpreter thread if it is parked waiting for a timer.
+ * Called for external events (such as a touch) that might make a
+ * process runnable before its next deadline.
+ */
+   public synchronized void wake() {
+      this.signaled = true;
+      notifyAll();
+      if (host != null) host.wake(this);
+   }
+
+
+/**
+ * Stops the interpreter and clears all code, processes, and variables.
+ * An interpreter on a VMHost must be stopped and idle first (see
+ * VMHost.isIdle), since a worker thread might still be stepping it.
  */
    public synchronized void clear() {
+      if (host != null && !host.isIdle(this)) {
+         throw new IllegalStateException("Interpreter is still active on its host");
+      }
       stop();
       this.code.clear();
+      this.icount = 0;
+      this.barrier = 0;
+      this.compiled = null;
+      this.fnames.clear();
+      this.functions = new Method[0];
       this.processes.clear();
-      this.vars.clear();
+      this.vcount = 0;
       this.labels.clear();
    }
 
@@ -111,6 +216,7 @@ public class Interpreter implements Runnable {
       while ((line = in.readLine()) != null) {
          loadLine(line);
       }
+      link();
    }
    
    
@@ -119,6 +225,48 @@ public class Interpreter implements Runnable {
    }
 
 
+/**
+ * Selects the backend for this interpreter.  When compiling, each
+ * program is translated into a CompiledProgram as it is loaded and
+ * processes run the compiled steps instead of the instruction loop.
+ * Both backends behave the same; the default is to interpret.
+ */
+   public synchronized void setCompiled(boolean compile) {
+      this.compile = compile;
+      this.compiled = (compile && icount > 0)? new CompiledProgram(this) : null;
+   }
+
+
+   public boolean isCompiled() {
+      return this.compile;
+   }
+
+
+/**
+ * Sets the number of instructions a process may run before it has to
+ * let the other processes run.  Processes take turns (round-robin),
+ * and the interpreter checks for stop() between turns, so a busy loop
+ * without a wait can't starve the other processes or the interpreter.
+ * Zero or less means no limit.
+ */
+   public void setSliceBudget(int budget) {
+      this.budget = (budget > 0)? budget : Integer.MAX_VALUE;
+   }
+
+
+   public int getSliceBudget() {
+      return this.budget;
+   }
+
+
+/**
+ * Returns the processes of the loaded program (for their statistics)
+ */
+   public List<Process> getProcesses() {
+      return java.util.Collections.unmodifiableList(processes);
+   }
+
+
 /**
  * Returns true if the interpreter is running
  */
@@ -139,6 +287,7 @@ public class Interpreter implements Runnable {
    
    public void setRobot(Object robot) {
       this.robot = robot;
+      bindFunctions();
    }
 
    
@@ -184,61 +333,129 @@ public class Interpreter implements Runnable {
 
 
 /**
- * Invokes a built-in robot command
+ * Invokes a built-in robot command by its function id
  */
-   public int invokeFunction(Process p, String func, int [] args) {
+   public int invokeFunction(Process p, int fid, int [] args) {
       if (robot == null) return 0;
+      Method m = functions[fid];
+      if (m == null) {
+         error(p, "Undefined robot function: " + fnames.get(fid));
+         return 0;
+      }
       try {
-         Method m = robot.getClass().getMethod(func, args.getClass());
-         Integer result = (Integer)m.invoke(robot, args);
-         return (result != null)? result.intValue() : 0;
+         Object result = m.invoke(robot, args);
+         return (result instanceof Integer)? ((Integer)result).intValue() : 0;
       } catch (Exception x) {
-         error(p, "Undefined robot function: " + func);
+         error(p, "Robot function failed: " + fnames.get(fid));
          return 0;
       }
    }
-   
-
-   public void run() {
-      
-      long temp, clock = System.currentTimeMillis();
 
-      while (!stop) {
 
-         // service each process
-         for (Process p : processes) {
-            if (p.isRunning()) {
-               if (!p.run()) {
-                  notifyProcessStopped(p);
-               }
+/**
+ * Resolves every robot function named by a remote instruction into a
+ * method of the current robot.  Lookups happen once here rather than
+ * on every call, and undefined functions are reported right away.
+ */
+   protected void bindFunctions() {
+      Method [] table = new Method[fnames.size()];
+      List<String> missing = new java.util.ArrayList<String>();
+      
+      if (robot != null) {
+         Class<?> c = robot.getClass();
+         for (int i=0; i<table.length; i++) {
+            try {
+               table[i] = c.getMethod(fnames.get(i), int[].class);
+               table[i].setAccessible(true);
+            } catch (NoSuchMethodException nx) {
+               missing.add(fnames.get(i));
+            } catch (SecurityException sx) {
+               ;  // keep the default access checks
             }
          }
-         
+      }
+      this.functions = table;
+      
+      for (String func : missing) {
+         error(null, "Undefined robot function: " + func);
+      }
+   }
+   
+
+   public void run() {
+      this.clock = 0;
+      while (!stop) {
+         int delay = step();
          if (stop) break;
          
-         // breathe
-         try { Thread.sleep(1200); }
-         catch (InterruptedException ix) { ; }
-
-         // update timers
-         temp = clock;
-         clock = System.currentTimeMillis();
-         updateTimers((int)(clock - temp));
+         // park until the next deadline or an external event.  with
+         // nothing running or sleeping, park until woken up.
+         if (delay < 0) {
+            park(0);
+         } else if (delay > 0) {
+            park(delay);
+         }
       }
       this.stop = false;
       this.running = false;
    }
-   
-   
-   protected String getLine(int index) {
-      if (index >= 0 && index < code.size()) {
-         return code.get(index);
-      } else {
-         return null;
+
+
+/**
+ * Runs one scheduling pass without blocking: timers are advanced by
+ * the time since the last pass and each ready process gets one time
+ * slice.  Returns 0 if a process is ready to run again, the number of
+ * milliseconds until the next timer expires, or -1 if no process is
+ * running or sleeping.  run() calls this in a loop; a VMHost calls it
+ * from its worker threads.
+ */
+   public int step() {
+      long now = System.currentTimeMillis();
+      if (clock != 0) updateTimers((int)(now - clock));
+      this.clock = now;
+
+      // give each ready process one time slice (sleepers wait for
+      // their timers)
+      for (Process p : processes) {
+         if (stop) break;
+         if (p.isRunning() && !p.isSleeping()) {
+            if (!p.run()) {
+               notifyProcessStopped(p);
+            }
+         }
+      }
+      if (stop) return -1;
+
+      // queue sleeping processes by wake-up deadline
+      boolean ready = false;
+      timers.clear();
+      for (Process p : processes) {
+         if (p.isSleeping()) {
+            timers.add(p);
+         } else if (p.isRunning()) {
+            ready = true;
+         }
       }
+      if (ready) return 0;
+      if (timers.isEmpty()) return -1;
+      long delay = timers.peek().getTimer() - (System.currentTimeMillis() - clock);
+      return (int)Math.max(delay, 0);
    }
 
 
+/**
+ * Blocks the interpreter thread for the given number of milliseconds
+ * (or indefinitely for zero) unless woken up by stop() or wake().
+ */
+   private synchronized void park(long millis) {
+      if (!signaled && !stop) {
+         try { wait(millis); }
+         catch (InterruptedException ix) { ; }
+      }
+      this.signaled = false;
+   }
+   
+   
    protected int getLineNumber(String label) {
       if (labels.containsKey(label)) {
          return labels.get(label);
@@ -254,8 +471,8 @@ public class Interpreter implements Runnable {
 
 
    protected int getVar(int addr) {
-      if (addr >= 0 && addr < vars.size()) {
-         return vars.get(addr);
+      if (addr >= 0 && addr < vcount) {
+         return vars[addr];
       } else {
          return 0;
       }
@@ -263,12 +480,31 @@ public class Interpreter implements Runnable {
 
    
    protected void setVar(int addr, int value) {
-      if (addr >= 0 && addr < vars.size()) {
-         vars.set(addr, value);
-      } else if (addr == vars.size()) {
-         vars.add(value);
+      if (addr >= 0 && addr < vcount) {
+         vars[addr] = value;
+      } else if (addr == vcount) {
+         allocateGlobals(vcount + 1);
+         vars[addr] = value;
       }
    }
+
+
+/**
+ * Makes room for (at least) the given number of zeroed global
+ * variables.  Storage only grows when a program uses more globals
+ * than it declared at load time.
+ */
+   protected void allocateGlobals(int count) {
+      if (count > vars.length) {
+         int [] temp = new int[Math.max(count, vars.length * 2)];
+         System.arraycopy(vars, 0, temp, 0, vcount);
+         this.vars = temp;
+      }
+      for (int i=vcount; i<count; i++) {
+         vars[i] = 0;
+      }
+      this.vcount = Math.max(vcount, count);
+   }
    
    
    private void loadLine(String line) {
@@ -278,28 +514,163 @@ public class Interpreter implements Runnable {
       line = line.trim();
       String [] instr = line.split(" ");
       
-      if (instr.length == 0) {
+      if (instr.length == 0 || instr[0].length() == 0) {
          return;
       } else if (instr[0].startsWith(";")) {  // skip comments
          return;
       } else {
          code.add(line);
       }
-      int count = code.size();
-      
+
+      // labels don't generate an instruction; they simply name
+      // the address of the next instruction to be decoded
       if (instr[0].startsWith(":")) {
-         this.labels.put(instr[0], count - 1);
+         this.labels.put(instr[0], icount);
+         this.barrier = icount;
+         return;
       }
-      else if ("process".equals(instr[0])) {
+      decode(instr);
+      
+      if ("process".equals(instr[0])) {
          if (instr.length == 2) {
-            this.processes.add(new Process(this, instr[1], count - 1));
+            this.processes.add(new Process(this, instr[1], icount - 1));
          } else {
-            this.processes.add(new Process(this, count - 1));
+            this.processes.add(new Process(this, icount - 1));
          }
       }
       else if ("function".equals(instr[0])) {
-         this.labels.put(instr[1], count);
+         this.labels.put(instr[1], icount);
+         this.barrier = icount;
+      }
+   }
+
+
+/**
+ * Translates a single assembly instruction into an opcode and
+ * operands and appends it to the instruction arrays.
+ */
+   private void decode(String [] instr) {
+      int opcode = Opcode.lookup(instr[0]);
+      String operand = (instr.length > 1)? instr[1] : null;
+      int arg = 0;
+
+      switch (opcode) {
+      case Opcode.PUSH:
+         arg = Process.parseInt(operand);
+         break;
+      case Opcode.REMOTE:
+         arg = fnames.indexOf(operand);
+         if (arg < 0) {
+            arg = fnames.size();
+            fnames.add(operand);
+         }
+         break;
+      case Opcode.STOP:
+         if (operand != null) opcode = Opcode.STOP_PROCESS;
+         break;
+      case Opcode.LOAD_GLOBAL:
+      case Opcode.STORE_GLOBAL:
+         if (operand != null) {
+            opcode = (opcode == Opcode.LOAD_GLOBAL)? Opcode.LOAD_VAR : Opcode.STORE_VAR;
+            arg = Process.parseInt(operand);
+         }
+         break;
+      case Opcode.GOTO:
+         if (operand != null) opcode = Opcode.JMP;
+         break;
+      case Opcode.IF_FALSE:
+         if (operand != null) opcode = Opcode.JZ;
+         break;
+      case Opcode.IF_TIMER:
+         if (operand != null) opcode = Opcode.JTIMER;
+         break;
+      case Opcode.IF_TRUE:
+         if (operand != null) opcode = Opcode.JNZ;
+         break;
+      case Opcode.CALL:
+         if (operand != null) opcode = Opcode.CALL_DIRECT;
+         break;
+      case Opcode.UNKNOWN:
+         operand = instr[0];
+         break;
       }
+
+      // load-address followed by a jump becomes one instruction with
+      // the target inline, unless a label points at the jump itself
+      if (icount > barrier && ops[icount - 1] == Opcode.LOAD_ADDRESS) {
+         int fused = fuse(opcode);
+         if (fused != Opcode.UNKNOWN) {
+            ops[icount - 1] = fused;
+            return;
+         }
+      }
+      
+      if (icount == ops.length) {
+         int [] tops = new int[icount * 2];
+         int [] targs = new int[icount * 2];
+         String [] tnames = new String[icount * 2];
+         System.arraycopy(ops, 0, tops, 0, icount);
+         System.arraycopy(args, 0, targs, 0, icount);
+         System.arraycopy(names, 0, tnames, 0, icount);
+         this.ops = tops;
+         this.args = targs;
+         this.names = tnames;
+      }
+      ops[icount] = opcode;
+      args[icount] = arg;
+      names[icount] = operand;
+      icount++;
+   }
+
+
+/**
+ * Returns the jump instruction with an inline target that replaces
+ * load-address followed by the given opcode (or UNKNOWN)
+ */
+   private static int fuse(int opcode) {
+      switch (opcode) {
+      case Opcode.GOTO:     return Opcode.JMP;
+      case Opcode.IF_FALSE: return Opcode.JZ;
+      case Opcode.IF_TRUE:  return Opcode.JNZ;
+      case Opcode.IF_TIMER: return Opcode.JTIMER;
+      case Opcode.CALL:     return Opcode.CALL_DIRECT;
+      default:              return Opcode.UNKNOWN;
+      }
+   }
+
+
+/**
+ * Resolves label operands into absolute instruction addresses, sizes
+ * the global variable segment, and binds robot functions.  This
+ * happens after the whole program is loaded so that forward references
+ * work.  Unknown labels resolve to -1 and are reported at runtime.
+ */
+   private void link() {
+      int globals = 0;
+      for (int i=0; i<icount; i++) {
+         if (ops[i] == Opcode.LOAD_ADDRESS || isJump(ops[i])) {
+            args[i] = getLineNumber(names[i]);
+         }
+         else if (ops[i] == Opcode.LOAD_VAR || ops[i] == Opcode.STORE_VAR) {
+            globals = Math.max(globals, args[i] + 1);
+         }
+
+         // the compiler addresses each global as push N / load-global or
+         // push N / store-global, so the largest N sizes the global scope
+         else if (ops[i] == Opcode.PUSH && i + 1 < icount &&
+                  (ops[i+1] == Opcode.LOAD_GLOBAL ||
+                   ops[i+1] == Opcode.STORE_GLOBAL)) {
+            globals = Math.max(globals, args[i] + 1);
+         }
+      }
+      allocateGlobals(globals);
+      bindFunctions();
+      this.compiled = compile? new CompiledProgram(this) : null;
+   }
+
+
+   private static boolean isJump(int opcode) {
+      return (opcode >= Opcode.JMP && opcode <= Opcode.CALL_DIRECT);
    }
 
 
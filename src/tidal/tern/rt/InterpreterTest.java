@@ -0,0 +1,368 @@
+package tidal.tern.rt;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import tidal.tern.compiler.Optimizer;
+import tidal.tern.compiler.TextCompiler;
+
+
+
+public class InterpreterTest extends TestCase {
+
+   protected TextCompiler compiler = new TextCompiler();
+
+   /** Optimizes the compiled code before loading it (if not null) */
+   protected Optimizer optimizer = null;
+
+   /** Runs the tests with the compiled backend */
+   protected boolean compiled = false;
+
+
+/**
+ * Robot used by the tests: counts calls and returns canned values
+ */
+   public static class TestRobot {
+      public int jumps = 0;
+      public int touches = 0;
+
+      public int doJump(int [] args) {
+         jumps++;
+         return 0;
+      }
+
+      public int add(int [] args) {
+         return args[0] + args[1];
+      }
+
+      public int getTouchSensor(int [] args) {
+         return (++touches >= 3)? 1 : 0;
+      }
+   }
+
+
+/**
+ * Records printed values and stops the interpreter once the first
+ * process finishes so that tests can call run() synchronously.
+ */
+   protected static class Recorder implements Debugger {
+      protected Interpreter in;
+      protected List<String> output = new java.util.ArrayList<String>();
+      protected List<String> errors = new java.util.ArrayList<String>();
+
+      public Recorder(Interpreter in) { this.in = in; }
+      public void trace(Process proc, String message) { }
+      public void print(Process proc, String value) { output.add(value); }
+      public void error(Process proc, String message) { errors.add(message); }
+      public void processStarted(Process proc) { }
+      public void processStopped(Process proc) { in.stop(); }
+   }
+
+
+   protected Interpreter newInterpreter() {
+      Interpreter in = new Interpreter();
+      in.setCompiled(compiled);
+      return in;
+   }
+
+
+   protected Recorder execute(Interpreter in, String tcode) throws Exception {
+      Recorder r = new Recorder(in);
+      in.addDebugger(r);
+      String pcode = compiler.compile(tcode);
+      if (optimizer != null) pcode = optimizer.optimize(pcode);
+      in.load(pcode);
+      in.running = true;
+      in.run();
+      return r;
+   }
+
+
+   protected String run(String tcode) throws Exception {
+      Interpreter in = newInterpreter();
+      in.setRobot(new TestRobot());
+      Recorder r = execute(in, tcode);
+      assertTrue("Runtime errors " + r.errors, r.errors.isEmpty());
+      return r.output.toString();
+   }
+
+
+   public void testExpressions() throws Exception {
+      assertEquals("[10, 6, 1, 0, 2]", run(
+         "process main:\n{\n" +
+         "   print 5 + 5\n" +
+         "   print 2 * 3\n" +
+         "   print 3 > 2\n" +
+         "   print not (3 > 2)\n" +
+         "   print 7 / 3\n" +
+         "}\n"));
+   }
+
+
+   public void testWhileLoops() throws Exception {
+      assertEquals("[3, 2, 1, 0]", run(
+         "process main:\n{\n" +
+         "   i = 3\n" +
+         "   while i > 0:\n" +
+         "   {\n" +
+         "      print i\n" +
+         "      i = i - 1\n" +
+         "   }\n" +
+         "   print i\n" +
+         "}\n"));
+   }
+
+
+   public void testGlobals() throws Exception {
+      assertEquals("[2, 1]", run(
+         "process main:\n{\n" +
+         "   wait 50\n" +
+         "   a = 1\n" +
+         "   while true:\n" +
+         "   {\n" +
+         "      wait 1000\n" +
+         "   }\n" +
+         "}\n" +
+         "process other:\n{\n" +
+         "   b = 2\n" +
+         "   wait 100\n" +
+         "   print b\n" +
+         "   print a\n" +
+         "}\n"));
+   }
+
+
+   public void testProcedures() throws Exception {
+      assertEquals("[7, 2]", run(
+         "def show(a, b):\n{\n" +
+         "   print a + b\n" +
+         "   print b\n" +
+         "}\n" +
+         "process main:\n{\n" +
+         "   show(5, 2)\n" +
+         "}\n"));
+   }
+
+
+   public void testRemoteFunctions() throws Exception {
+      Interpreter in = newInterpreter();
+      TestRobot robot = new TestRobot();
+      in.setRobot(robot);
+      Recorder r = execute(in,
+         "import doJump()\n" +
+         "import add(a, b)\n" +
+         "process main:\n{\n" +
+         "   doJump()\n" +
+         "   doJump()\n" +
+         "   print add(4, 5) + 0\n" +
+         "}\n");
+      assertEquals("[9]", r.output.toString());
+      assertEquals(2, robot.jumps);
+   }
+
+
+   public void testUndefinedFunction() throws Exception {
+      Interpreter in = newInterpreter();
+      Recorder r = new Recorder(in);
+      in.addDebugger(r);
+      in.setRobot(new TestRobot());
+      in.load(compiler.compile(
+         "import doFly()\n" +
+         "process main:\n{\n" +
+         "   doFly()\n" +
+         "}\n"));
+      assertEquals("[Undefined robot function: doFly]", r.errors.toString());
+   }
+
+
+   public void testWaitTimers() throws Exception {
+      long start = System.currentTimeMillis();
+      assertEquals("[1, 2]", run(
+         "process main:\n{\n" +
+         "   print 1\n" +
+         "   wait 100\n" +
+         "   wait 100\n" +
+         "   wait 100\n" +
+         "   print 2\n" +
+         "}\n"));
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("Waited " + elapsed, elapsed >= 300 && elapsed < 1000);
+   }
+
+
+/**
+ * Optimized code must behave exactly like the code it came from
+ */
+   public void testOptimizedCode() throws Exception {
+      this.optimizer = new Optimizer();
+      testExpressions();
+      testWhileLoops();
+      testGlobals();
+      testProcedures();
+      testRemoteFunctions();
+      testWaitTimers();
+      assertTrue(optimizer.getOutputCount() < optimizer.getInputCount());
+   }
+
+
+   public void testOptimizedJumps() throws Exception {
+      Interpreter in = newInterpreter();
+      Recorder r = new Recorder(in);
+      in.addDebugger(r);
+      in.load("process main\npush 3\nstore-global 0\n:loop\nload-global 0\n" +
+              "if-false :done\nload-global 0\nprint\nload-global 0\npush 1\n-\n" +
+              "store-global 0\ngoto :loop\n:done\ngoto :missing\nstop\n");
+      in.running = true;
+      in.run();
+      assertEquals("[3, 2, 1]", r.output.toString());
+      assertEquals("[Invalid Address: :missing]", r.errors.toString());
+   }
+
+
+/**
+ * The compiled backend must pass the same tests as the interpreter
+ */
+   public void testCompiledBackend() throws Exception {
+      this.compiled = true;
+      testExpressions();
+      testWhileLoops();
+      testGlobals();
+      testProcedures();
+      testRemoteFunctions();
+      testUndefinedFunction();
+      testWaitTimers();
+      testOptimizedJumps();
+      testUnknownOpcode();
+      testOptimizedCode();
+   }
+
+
+/**
+ * A process that stops itself by name stops right away in both backends
+ */
+   public void testStopByName() throws Exception {
+      String tcode =
+         "process main:\n{\n" +
+         "   print 1\n" +
+         "   stop main\n" +
+         "   print 2\n" +
+         "}\n";
+      assertEquals("[1]", run(tcode));
+      this.compiled = true;
+      assertEquals("[1]", run(tcode));
+   }
+
+
+/**
+ * A busy loop without a wait gets preempted so that the other process
+ * still runs and the interpreter still stops
+ */
+   public void testTimeSlicing() throws Exception {
+      for (int backend = 0; backend < 2; backend++) {
+         this.compiled = (backend == 1);
+         final Interpreter in = newInterpreter();
+         in.setSliceBudget(50);
+         Recorder r = new Recorder(in);
+         in.addDebugger(r);
+         in.load(compiler.compile(
+            "process spin:\n{\n" +
+            "   n = 0\n" +
+            "   while true:\n" +
+            "   {\n" +
+            "      n = n + 1\n" +
+            "   }\n" +
+            "}\n" +
+            "process main:\n{\n" +
+            "   wait 20\n" +
+            "   print 1\n" +
+            "}\n"));
+         in.running = true;
+         Thread thread = new Thread(in);
+         thread.start();
+         thread.join(5000);
+         assertFalse("Interpreter didn't stop", thread.isAlive());
+         assertEquals("[1]", r.output.toString());
+
+         Process spin = in.getProcesses().get(0);
+         assertTrue(spin.getPreemptionCount() > 0);
+         assertEquals(50, spin.getLastSliceLength());
+         assertTrue(spin.getInstructionCount() <= 50L * spin.getSliceCount());
+      }
+   }
+
+
+/**
+ * stop() called from another thread ends a busy loop within a slice
+ */
+   public void testStopFromThread() throws Exception {
+      for (int backend = 0; backend < 2; backend++) {
+         this.compiled = (backend == 1);
+         Interpreter in = newInterpreter();
+         in.load(compiler.compile(
+            "process main:\n{\n" +
+            "   n = 0\n" +
+            "   while true:\n" +
+            "   {\n" +
+            "      n = n + 1\n" +
+            "   }\n" +
+            "}\n"));
+         in.running = true;
+         Thread thread = new Thread(in);
+         thread.start();
+         Thread.sleep(50);
+         assertTrue(thread.isAlive());
+
+         in.stop();
+         thread.join(5000);
+         assertFalse("Interpreter didn't stop", thread.isAlive());
+         assertFalse(in.isRunning());
+      }
+   }
+
+
+/**
+ * The loader fuses load-address with the jump or call that follows it,
+ * but not when a label points at the jump
+ */
+   public void testFusedJumps() throws Exception {
+      Interpreter in = new Interpreter();
+      String pcode = compiler.compile(
+         "def show(a):\n{\n   print a\n}\n" +
+         "process main:\n{\n" +
+         "   i = 2\n" +
+         "   while i > 0:\n" +
+         "   {\n" +
+         "      show(i)\n" +
+         "      wait 10\n" +
+         "      i = i - 1\n" +
+         "   }\n" +
+         "}\n");
+      in.load(pcode);
+      assertEquals(Optimizer.count(pcode) - 5, in.icount);
+      for (int i=0; i<in.icount; i++) {
+         assertTrue(in.ops[i] != Opcode.LOAD_ADDRESS);
+      }
+
+      in = new Interpreter();
+      in.load("process main\nload-address :skip\n:here\ngoto\n:skip\nstop\n");
+      assertEquals(Opcode.LOAD_ADDRESS, in.ops[1]);
+      assertEquals(Opcode.GOTO, in.ops[2]);
+
+      in = new Interpreter();
+      in.load("process main\njmp :skip\npush 1\nif-true :skip\n:skip\nstop\n");
+      assertEquals(Opcode.JMP, in.ops[1]);
+      assertEquals(Opcode.JNZ, in.ops[3]);
+      assertEquals(4, in.args[1]);
+   }
+
+
+   public void testUnknownOpcode() throws Exception {
+      Interpreter in = newInterpreter();
+      Recorder r = new Recorder(in);
+      in.addDebugger(r);
+      in.load("process main\npush 1\nbogus\nprint\nstop\n");
+      in.running = true;
+      in.run();
+      assertEquals("[Unknown opcode bogus]", r.errors.toString());
+   }
+}
@@ -0,0 +1,179 @@
+/*
+ * @(#) Opcode.java
+ *
+ * Tern Tangible Programming Language
+ * Copyright (c) 2011 Michael S. Horn
+ *
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package tidal.tern.rt;
+
+import java.util.Map;
+
+
+/**
+ * Numeric opcodes for pre-decoded assembly instructions.  The
+ * interpreter translates each line of assembly into one of these
+ * values at load time so that processes never have to parse strings
+ * while they run.
+ *
+ * @author Michael Horn
+ */
+public class Opcode {
+
+   public static final int UNKNOWN       = 0;
+   public static final int NOP           = 1;
+   public static final int FUNCTION      = 2;
+   public static final int PROCESS       = 3;
+   public static final int STOP          = 4;
+   public static final int STOP_PROCESS  = 5;
+   public static final int PUSH          = 6;
+   public static final int TRACE         = 7;
+   public static final int REMOTE        = 8;
+   public static final int START         = 9;
+   public static final int LOAD_ADDRESS  = 10;
+   public static final int EXIT          = 11;
+   public static final int YIELD         = 12;
+   public static final int PRINT         = 13;
+   public static final int FRAME         = 14;
+   public static final int GOTO          = 15;
+   public static final int CALL          = 16;
+   public static final int RETURN        = 17;
+   public static final int POP           = 18;
+   public static final int DUP           = 19;
+   public static final int LOAD_GLOBAL   = 20;
+   public static final int STORE_GLOBAL  = 21;
+   public static final int LOAD_FRAME    = 22;
+   public static final int STORE_FRAME   = 23;
+   public static final int AND           = 24;
+   public static final int OR            = 25;
+   public static final int NOT           = 26;
+   public static final int EQ            = 27;
+   public static final int GT            = 28;
+   public static final int LT            = 29;
+   public static final int GTE           = 30;
+   public static final int LTE           = 31;
+   public static final int NE            = 32;
+   public static final int ADD           = 33;
+   public static final int SUB           = 34;
+   public static final int MULT          = 35;
+   public static final int DIV           = 36;
+   public static final int RAND          = 37;
+   public static final int IF_TRUE       = 38;
+   public static final int IF_FALSE      = 39;
+   public static final int IF_TIMER      = 40;
+   public static final int TIMER         = 41;
+
+   // operand forms produced by the optimizer and jumps fused by the
+   // loader (load-address :label followed by goto, if-false, ...)
+   public static final int LOAD_VAR      = 42;  // load-global N
+   public static final int STORE_VAR     = 43;  // store-global N
+   public static final int JMP           = 44;  // goto :label
+   public static final int JZ            = 45;  // if-false :label
+   public static final int JTIMER        = 46;  // if-timer :label
+   public static final int JNZ           = 47;  // if-true :label
+   public static final int CALL_DIRECT   = 48;  // call label
+
+
+   /** Assembly mnemonics indexed by opcode */
+   private static final String [] NAMES = new String[CALL_DIRECT + 1];
+
+   /** Opcodes indexed by assembly mnemonic */
+   private static final Map<String, Integer> CODES =
+      new java.util.HashMap<String, Integer>();
+
+   static {
+      define(NOP,          "nop");
+      define(FUNCTION,     "function");
+      define(PROCESS,      "process");
+      define(STOP,         "stop");
+      define(PUSH,         "push");
+      define(TRACE,        "trace");
+      define(REMOTE,       "remote");
+      define(START,        "start");
+      define(LOAD_ADDRESS, "load-address");
+      define(EXIT,         "exit");
+      define(YIELD,        "yield");
+      define(PRINT,        "print");
+      define(FRAME,        "frame");
+      define(GOTO,         "goto");
+      define(CALL,         "call");
+      define(RETURN,       "return");
+      define(POP,          "pop");
+      define(DUP,          "dup");
+      define(LOAD_GLOBAL,  "load-global");
+      define(STORE_GLOBAL, "store-global");
+      define(LOAD_FRAME,   "load-frame");
+      define(STORE_FRAME,  "store-frame");
+      define(AND,          "and");
+      define(OR,           "or");
+      define(NOT,          "not");
+      define(EQ,           "=");
+      define(GT,           ">");
+      define(LT,           "<");
+      define(GTE,          ">=");
+      define(LTE,          "<=");
+      define(NE,           "!=");
+      define(ADD,          "+");
+      define(SUB,          "-");
+      define(MULT,         "*");
+      define(DIV,          "/");
+      define(RAND,         "rand");
+      define(IF_TRUE,      "if-true");
+      define(IF_FALSE,     "if-false");
+      define(IF_TIMER,     "if-timer");
+      define(TIMER,        "timer");
+      define(JMP,          "jmp");
+      define(JZ,           "jz");
+      define(JNZ,          "jnz");
+      define(JTIMER,       "jtimer");
+      define(CALL_DIRECT,  "call-direct");
+      NAMES[UNKNOWN]      = "???";
+      NAMES[STOP_PROCESS] = "stop";
+      NAMES[LOAD_VAR]     = "load-global";
+      NAMES[STORE_VAR]    = "store-global";
+   }
+
+
+   private static void define(int opcode, String name) {
+      NAMES[opcode] = name;
+      CODES.put(name, opcode);
+   }
+
+
+/**
+ * Returns the opcode for an assembly mnemonic or UNKNOWN
+ */
+   public static int lookup(String name) {
+      Integer opcode = CODES.get(name);
+      return (opcode == null)? UNKNOWN : opcode.intValue();
+   }
+
+
+/**
+ * Returns the assembly mnemonic for an opcode
+ */
+   public static String getName(int opcode) {
+      if (opcode >= 0 && opcode < NAMES.length) {
+         return NAMES[opcode];
+      } else {
+         return NAMES[UNKNOWN];
+      }
+   }
+}
@@ -34,6 +34,9 @@ public class Process {
 
    static final int MAX_STACK = 64;
 
+   /** Shared argument list for robot functions without parameters */
+   static final int [] NO_ARGS = new int[0];
+
    
    /** Instruction pointer */
    protected int ip;
@@ -62,6 +65,21 @@ public class Process {
    /** Used to generate random numbers */
    protected Random rand;
 
+   /** Instructions left in the current time slice */
+   protected int left;
+
+   /** Number of instructions executed in the last time slice */
+   protected int lastSlice;
+
+   /** Total number of instructions executed */
+   protected long executed;
+
+   /** Number of time slices run */
+   protected int slices;
+
+   /** Number of slices that ended because the budget ran out */
+   protected int preemptions;
+
    
    
    public Process(Interpreter in, String name, int start) {
@@ -94,6 +112,22 @@ public class Process {
    }
 
 
+/**
+ * Returns true if the process is waiting for its timer to expire
+ */
+   public boolean isSleeping() {
+      return this.ip >= 0 && this.timer > 0;
+   }
+
+
+/**
+ * Returns the number of milliseconds until the process timer expires
+ */
+   public int getTimer() {
+      return this.timer;
+   }
+
+
    public void restart() {
       this.ip    = start;
       this.fp    = 0;
@@ -116,88 +150,137 @@ public class Process {
    }
 
 
+/**
+ * Runs the process for one time slice: until it yields, stops, or has
+ * executed the interpreter's instruction budget.  A process that runs
+ * out of budget is preempted and continues where it left off in its
+ * next slice.  Returns false once the process has stopped.
+ */
    public boolean run() {
-      String line;
-      String [] instr;
+      this.left = in.budget;
+      boolean result = (in.compiled != null)? in.compiled.run(this) : interpret();
+      this.lastSlice = in.budget - left;
+      this.executed += lastSlice;
+      this.slices++;
+      return result;
+   }
+
+
+/**
+ * Ends the current time slice before the instruction at addr
+ */
+   protected boolean preempt(int addr) {
+      this.ip = addr;
+      this.preemptions++;
+      return true;
+   }
+
+
+/**
+ * Returns the number of instructions executed in the last time slice
+ */
+   public int getLastSliceLength() {
+      return this.lastSlice;
+   }
+
+
+/**
+ * Returns the total number of instructions executed by this process
+ */
+   public long getInstructionCount() {
+      return this.executed;
+   }
+
+
+/**
+ * Returns the number of time slices this process has run
+ */
+   public int getSliceCount() {
+      return this.slices;
+   }
+
+
+/**
+ * Returns the number of time slices that used up the whole budget
+ */
+   public int getPreemptionCount() {
+      return this.preemptions;
+   }
+
+
+   protected boolean interpret() {
+      int [] ops = in.ops;
+      int [] args = in.args;
+      String [] names = in.names;
+      int count = in.icount;
+      int pc;
 
       while (ip >= 0) {
 
-         line = in.getLine(ip++);
-         if (line == null) {
+         if (ip >= count) {
             ip = -1;
             return false;
          }
-         
-         instr = line.split(" ");
+         if (left == 0) return preempt(ip);
+         left--;
+         pc = ip++;
 
-         //-----------------------------------------------------
-         // Blank lines, labels, comments
-         //-----------------------------------------------------
-         if (instr.length == 0 || "".equals(instr[0])) {
-            continue;
-         } else if (instr[0].startsWith(":")) {
-            continue;
-         } else if (instr[0].startsWith(";")) {
-            continue;
-         }
-         String opcode = instr[0];
-         
+         switch (ops[pc]) {
+            
          //-----------------------------------------------------
          // Stop instructions (2 forms)
          //-----------------------------------------------------
-         if ("stop".equals(opcode)) {
-            if (instr.length == 1) {
-               STOP();   // stop this process
-               return false;
-            } else if (instr.length > 1) {
-               STOP(instr[1]);   // stop a named process
-            }
-         }
-
-         //-----------------------------------------------------
-         // Ugly instruction mapping
-         //-----------------------------------------------------
-         else if ("nop".equals(opcode))          { ; }
-         else if ("function".equals(opcode))     { ; }
-         else if ("process".equals(opcode))      { in.notifyProcessStarted(this); }
-         else if ("push".equals(opcode))         { PUSH(instr[1]); }
-         else if ("trace".equals(opcode))        { TRACE(instr[1]); }
-         else if ("remote".equals(opcode))       { REMOTE(instr[1]); }
-         else if ("start".equals(opcode))        { START(instr[1]); }
-         else if ("load-address".equals(opcode)) { LOAD_ADDRESS(instr[1]); }
-         else if ("exit".equals(opcode))         { EXIT(); return false; }
-         else if ("yield".equals(opcode))        { YIELD(); return true; }
-         else if ("print".equals(opcode))        { PRINT(); }
-         else if ("frame".equals(opcode))        { FRAME(); }
-         else if ("goto".equals(opcode))         { GOTO(); }
-         else if ("call".equals(opcode))         { CALL(); }
-         else if ("return".equals(opcode))       { RETURN(); }
-         else if ("pop".equals(opcode))          { POP(); }
-         else if ("dup".equals(opcode))          { DUP(); }
-         else if ("load-global".equals(opcode))  { LOAD_GLOBAL(); }
-         else if ("store-global".equals(opcode)) { STORE_GLOBAL(); }
-         else if ("load-frame".equals(opcode))   { LOAD_FRAME(); }
-         else if ("store-frame".equals(opcode))  { STORE_FRAME(); }
-         else if ("and".equals(opcode))          { AND(); }
-         else if ("or".equals(opcode))           { OR(); }
-         else if ("not".equals(opcode))          { NOT(); }
-         else if ("=".equals(opcode))            { EQ(); }
-         else if (">".equals(opcode))            { GT(); }
-         else if ("<".equals(opcode))            { LT(); }
-         else if (">=".equals(opcode))           { GTE(); }
-         else if ("<=".equals(opcode))           { LTE(); }
-         else if ("!=".equals(opcode))           { NE(); }
-         else if ("+".equals(opcode))            { ADD(); }
-         else if ("-".equals(opcode))            { SUB(); }
-         else if ("*".equals(opcode))            { MULT(); }
-         else if ("/".equals(opcode))            { DIV(); }
-         else if ("rand".equals(opcode))         { RAND(); }
-         else if ("if-true".equals(opcode))      { IF_TRUE(); }
-         else if ("if-false".equals(opcode))     { IF_FALSE(); }
-         else if ("if-timer".equals(opcode))     { IF_TIMER(); }
-         else if ("timer".equals(opcode))        { TIMER(); }
-         else {
-            ERROR("Unknown opcode " + opcode);
+         case Opcode.STOP:          STOP(); return false;  // stop this process
+         case Opcode.STOP_PROCESS:  STOP(names[pc]); break;  // stop a named process
+
+         case Opcode.NOP:           break;
+         case Opcode.FUNCTION:      break;
+         case Opcode.PROCESS:       in.notifyProcessStarted(this); break;
+         case Opcode.PUSH:          PUSH(args[pc]); break;
+         case Opcode.TRACE:         TRACE(names[pc]); break;
+         case Opcode.REMOTE:        REMOTE(args[pc]); break;
+         case Opcode.START:         START(names[pc]); break;
+         case Opcode.LOAD_ADDRESS:  LOAD_ADDRESS(args[pc], names[pc]); break;
+         case Opcode.EXIT:          EXIT(); return false;
+         case Opcode.YIELD:         YIELD(); return true;
+         case Opcode.PRINT:         PRINT(); break;
+         case Opcode.FRAME:         FRAME(); break;
+         case Opcode.GOTO:          GOTO(); break;
+         case Opcode.CALL:          CALL(); break;
+         case Opcode.RETURN:        RETURN(); break;
+         case Opcode.POP:           POP(); break;
+         case Opcode.DUP:           DUP(); break;
+         case Opcode.LOAD_GLOBAL:   LOAD_GLOBAL(); break;
+         case Opcode.STORE_GLOBAL:  STORE_GLOBAL(); break;
+         case Opcode.LOAD_FRAME:    LOAD_FRAME(); break;
+         case Opcode.STORE_FRAME:   STORE_FRAME(); break;
+         case Opcode.AND:           AND(); break;
+         case Opcode.OR:            OR(); break;
+         case Opcode.NOT:           NOT(); break;
+         case Opcode.EQ:            EQ(); break;
+         case Opcode.GT:            GT(); break;
+         case Opcode.LT:            LT(); break;
+         case Opcode.GTE:           GTE(); break;
+         case Opcode.LTE:           LTE(); break;
+         case Opcode.NE:            NE(); break;
+         case Opcode.ADD:           ADD(); break;
+         case Opcode.SUB:           SUB(); break;
+         case Opcode.MULT:          MULT(); break;
+         case Opcode.DIV:           DIV(); break;
+         case Opcode.RAND:          RAND(); break;
+         case Opcode.IF_TRUE:       IF_TRUE(); break;
+         case Opcode.IF_FALSE:      IF_FALSE(); break;
+         case Opcode.IF_TIMER:      IF_TIMER(); break;
+         case Opcode.TIMER:         TIMER(); break;
+         case Opcode.LOAD_VAR:      push(in.getVar(args[pc])); break;
+         case Opcode.STORE_VAR:     in.setVar(args[pc], pop()); break;
+         case Opcode.JMP:           JMP(args[pc], names[pc]); break;
+         case Opcode.JZ:            JZ(args[pc], names[pc]); break;
+         case Opcode.JTIMER:        JTIMER(args[pc], names[pc]); break;
+         case Opcode.JNZ:           JNZ(args[pc], names[pc]); break;
+         case Opcode.CALL_DIRECT:   CALL_DIRECT(args[pc], names[pc]); break;
+         default:
+            ERROR("Unknown opcode " + names[pc]);
             return false;
          }
       }
@@ -287,16 +370,16 @@ public class Process {
    }
    
    
-   protected void REMOTE(String func) {
+   protected void REMOTE(int fid) {
       int acount = pop();  // argument count
       int result = 0;
       
       if (acount <= 64) {
-         int [] args = new int[acount];
+         int [] args = (acount == 0)? NO_ARGS : new int[acount];
          for (int i=acount-1; i >= 0; i--) {
             args[i] = pop();
          }
-         result = in.invokeFunction(this, func, args);
+         result = in.invokeFunction(this, fid, args);
       }
       
       push(result);
@@ -350,8 +433,8 @@ public class Process {
    }
 
 
-   protected void PUSH(String arg) {
-      push(parseInt(arg));
+   protected void PUSH(int value) {
+      push(value);
    }
 
 
@@ -413,6 +496,55 @@ public class Process {
    }
 
 
+/**
+ * Jumps straight to a linked address (jmp, goto :label)
+ */
+   protected void JMP(int addr, String label) {
+      if (addr < 0) ERROR("Invalid Address: " + label);
+      ip = addr;
+   }
+
+
+/**
+ * Jumps to a linked address if the top of the stack is false
+ * (jz, if-false :label)
+ */
+   protected void JZ(int addr, String label) {
+      if (addr < 0) ERROR("Invalid Address: " + label);
+      if (pop() == 0) ip = addr;
+   }
+
+
+/**
+ * Jumps to a linked address if the top of the stack is true
+ * (jnz, if-true :label)
+ */
+   protected void JNZ(int addr, String label) {
+      if (addr < 0) ERROR("Invalid Address: " + label);
+      if (pop() != 0) ip = addr;
+   }
+
+
+/**
+ * Calls a function at a linked address (call-direct, call label)
+ */
+   protected void CALL_DIRECT(int addr, String label) {
+      if (addr < 0) ERROR("Invalid Address: " + label);
+      push(ip);
+      ip = addr;
+   }
+
+
+/**
+ * Jumps to a linked address once the process timer has expired
+ * (jtimer, if-timer :label)
+ */
+   protected void JTIMER(int addr, String label) {
+      if (addr < 0) ERROR("Invalid Address: " + label);
+      if (timer == 0) ip = addr;
+   }
+
+
    protected void RAND() {
       int b = pop();
       int a = pop();
@@ -421,11 +553,10 @@ public class Process {
    }
 
    
-   protected void LOAD_ADDRESS(String arg) {
-      int addr = in.getLineNumber(arg);
+   protected void LOAD_ADDRESS(int addr, String label) {
       push(addr);
       if (addr < 0) {
-         ERROR("Invalid Address: " + arg);
+         ERROR("Invalid Address: " + label);
       }
    }
 
@@ -0,0 +1,176 @@
+/*
+ * @(#) TimingWheel.java
+ *
+ * Tern Tangible Programming Language
+ * Copyright (c) 2011 Michael S. Horn
+ *
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package tidal.tern.rt;
+
+import java.util.List;
+
+
+
+/**
+ * Hierarchical timing wheel for a large number of timers.  Time is
+ * divided into ticks, and each level of the wheel has 64 slots that
+ * each cover 64 times as many ticks as a slot of the level below.
+ * Scheduling a timer and expiring it take constant time no matter how
+ * many timers are pending.  Timers in the upper levels move down
+ * (cascade) as their time approaches.  Timers expire on the first tick
+ * at or after their deadline.
+ * <p>
+ * Not thread-safe; callers synchronize.
+ *
+ * @author Michael Horn
+ */
+public class TimingWheel<T> {
+
+   protected static final int BITS = 6;
+   protected static final int SLOTS = 1 << BITS;
+   protected static final int MASK = SLOTS - 1;
+   protected static final int LEVELS = 4;
+
+
+   static class Timer<T> {
+      T item;
+      long deadline;  // in ticks
+      Timer<T> next;
+   }
+
+
+   /** Milliseconds per tick */
+   protected int tick;
+
+   /** Current time in ticks */
+   protected long now;
+
+   /** Linked lists of timers, one per slot of each level */
+   protected Timer<T> [][] wheel;
+
+   /** Unused timers */
+   protected Timer<T> free;
+
+   /** Number of pending timers */
+   protected int count;
+
+
+/**
+ * Creates a timing wheel with the given resolution that starts at the
+ * given time (both in milliseconds)
+ */
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public TimingWheel(int tick, long time) {
+      this.tick  = Math.max(1, tick);
+      this.now   = time / this.tick;
+      this.wheel = new Timer[LEVELS][SLOTS];
+      this.free  = null;
+      this.count = 0;
+   }
+
+
+   public int size() {
+      return this.count;
+   }
+
+
+/**
+ * Returns the current time of the wheel in milliseconds
+ */
+   public long getTime() {
+      return this.now * tick;
+   }
+
+
+/**
+ * Schedules an item to expire at the given time in milliseconds
+ */
+   public void schedule(T item, long time) {
+      Timer<T> t = free;
+      if (t != null) {
+         free = t.next;
+      } else {
+         t = new Timer<T>();
+      }
+      t.item = item;
+      t.deadline = Math.max((time + tick - 1) / tick, now + 1);
+      insert(t);
+      count++;
+   }
+
+
+/**
+ * Moves the wheel forward to the given time in milliseconds and adds
+ * the items that expired to the list
+ */
+   public void advance(long time, List<T> expired) {
+      long target = time / tick;
+      if (count == 0) {
+         now = Math.max(now, target);
+         return;
+      }
+      while (now < target && count > 0) {
+         now++;
+
+         // move timers down from the levels whose slot just turned over
+         for (int level=1; level<LEVELS; level++) {
+            if (((now >> (BITS * (level - 1))) & MASK) != 0) break;
+            int slot = (int)(now >> (BITS * level)) & MASK;
+            Timer<T> t = wheel[level][slot];
+            wheel[level][slot] = null;
+            while (t != null) {
+               Timer<T> next = t.next;
+               insert(t);
+               t = next;
+            }
+         }
+
+         int slot = (int)now & MASK;
+         Timer<T> t = wheel[0][slot];
+         wheel[0][slot] = null;
+         while (t != null) {
+            Timer<T> next = t.next;
+            expired.add(t.item);
+            t.item = null;
+            t.next = free;
+            free = t;
+            count--;
+            t = next;
+         }
+      }
+      now = Math.max(now, target);
+   }
+
+
+/**
+ * Files a timer into the slot for its deadline, relative to now
+ */
+   protected void insert(Timer<T> t) {
+      long delta = Math.max(t.deadline - now, 0);
+      int level = 0;
+      while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+         level++;
+      }
+      long when = Math.min(t.deadline, now + (1L << (BITS * (level + 1))) - 1);
+      int slot = (int)(when >> (BITS * level)) & MASK;
+      t.next = wheel[level][slot];
+      wheel[level][slot] = t;
+   }
+}
@@ -0,0 +1,283 @@
+/*
+ * @(#) VMHost.java
+ *
+ * Tern Tangible Programming Language
+ * Copyright (c) 2011 Michael S. Horn
+ *
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package tidal.tern.rt;
+
+import java.util.List;
+import java.util.LinkedList;
+
+
+
+/**
+ * Runs many interpreters on a fixed pool of worker threads instead of
+ * one thread per interpreter (see Interpreter.start).  Each worker
+ * takes a ready interpreter from a shared run queue and calls its
+ * step() method, which gives each of its ready processes one time
+ * slice.  The interpreter then goes to the back of the queue if it
+ * is still ready, or into a shared timing wheel until its next timer
+ * expires.  Interpreters with nothing to do wait until they're woken
+ * up.  Every interpreter keeps its own robot, variables, and
+ * processes, and is stepped by only one worker at a time.
+ *
+ * @author Michael Horn
+ */
+public class VMHost {
+
+   /** Default timer resolution in milliseconds */
+   public static final int TICK = 10;
+
+   /** Interpreter is waiting to be woken up (or has finished) */
+   static final int IDLE     = 0;
+
+   /** Interpreter is in the run queue */
+   static final int QUEUED   = 1;
+
+   /** Interpreter is being stepped by a worker */
+   static final int RUNNING  = 2;
+
+   /** Interpreter is waiting in the timing wheel */
+   static final int SLEEPING = 3;
+
+
+   /** Interpreters ready to run, in round-robin order */
+   protected LinkedList<Interpreter> queue;
+
+   /** Sleeping interpreters by wake-up time */
+   protected TimingWheel<Interpreter> wheel;
+
+   /** Scratch list for interpreters whose timers expired */
+   protected List<Interpreter> expired;
+
+   /** Worker threads */
+   protected Thread [] workers;
+
+   /** Number of interpreters that are queued, running, or sleeping */
+   protected int busy;
+
+   /** Number of interpreter steps run */
+   protected long steps;
+
+   /** Set by shutdown() */
+   protected boolean shutdown;
+
+
+/**
+ * Creates a host with the given number of worker threads
+ */
+   public VMHost(int threads) {
+      this.queue    = new LinkedList<Interpreter>();
+      this.wheel    = new TimingWheel<Interpreter>(TICK, System.currentTimeMillis());
+      this.expired  = new java.util.ArrayList<Interpreter>();
+      this.workers  = new Thread[Math.max(1, threads)];
+      this.busy     = 0;
+      this.steps    = 0;
+      this.shutdown = false;
+
+      for (int i=0; i<workers.length; i++) {
+         workers[i] = new Thread(new Runnable() {
+            public void run() { work(); }
+         }, "VMHost-" + i);
+         workers[i].setDaemon(true);
+         workers[i].start();
+      }
+   }
+
+
+/**
+ * Starts running a loaded interpreter on this host
+ */
+   public synchronized void submit(Interpreter in) {
+      if (in.host != null && in.host != this) {
+         throw new IllegalStateException("Interpreter belongs to another host");
+      }
+      in.host = this;
+      in.running = true;
+      in.stop = false;
+      in.clock = 0;
+      wake(in);
+   }
+
+
+/**
+ * Makes an interpreter runnable again, for example after an external
+ * event or stop().  Called by Interpreter.wake().
+ */
+   protected synchronized void wake(Interpreter in) {
+      switch (in.hostState) {
+      case IDLE:
+         if (in.running || in.stop) enqueue(in);
+         break;
+      case SLEEPING:
+         in.hostState = QUEUED;  // the wheel ignores it when it expires
+         queue.addLast(in);
+         notify();
+         break;
+      case RUNNING:
+         in.woken = true;
+         break;
+      }
+   }
+
+
+   private void enqueue(Interpreter in) {
+      if (in.hostState == IDLE) busy++;
+      in.hostState = QUEUED;
+      queue.addLast(in);
+      notify();
+   }
+
+
+/**
+ * Returns true if the interpreter isn't queued, running, or sleeping
+ * on this host
+ */
+   public synchronized boolean isIdle(Interpreter in) {
+      return in.hostState == IDLE;
+   }
+
+
+/**
+ * Returns the number of interpreters that are running or waiting for
+ * a timer
+ */
+   public synchronized int getActiveCount() {
+      return this.busy;
+   }
+
+
+/**
+ * Returns the total number of interpreter steps run by the workers
+ */
+   public synchronized long getStepCount() {
+      return this.steps;
+   }
+
+
+/**
+ * Waits until every interpreter has stopped or is idle.  Returns false
+ * if that didn't happen within the given number of milliseconds.
+ */
+   public synchronized boolean awaitIdle(long millis) throws InterruptedException {
+      long end = System.currentTimeMillis() + millis;
+      while (busy > 0) {
+         long left = end - System.currentTimeMillis();
+         if (left <= 0) return false;
+         wait(left);
+      }
+      return true;
+   }
+
+
+/**
+ * Stops the worker threads.  Interpreters are left as they are.
+ */
+   public synchronized void shutdown() {
+      this.shutdown = true;
+      notifyAll();
+   }
+
+
+/**
+ * Worker loop: steps the interpreter at the head of the run queue and
+ * files it away again according to the result
+ */
+   protected void work() {
+      while (true) {
+         Interpreter in = next();
+         if (in == null) return;
+
+         int delay = -1;
+         if (!in.stop) {
+            try {
+               delay = in.step();
+            } catch (RuntimeException x) {
+               in.error(null, "Interpreter failed: " + x);
+               in.stop = true;
+            }
+         }
+         finish(in, delay);
+      }
+   }
+
+
+/**
+ * Takes the next ready interpreter, moving the ones whose timers have
+ * expired into the run queue.  Blocks until there is one.  Returns null
+ * after shutdown().
+ */
+   private synchronized Interpreter next() {
+      while (!shutdown) {
+         wheel.advance(System.currentTimeMillis(), expired);
+         for (int i=0; i<expired.size(); i++) {
+            Interpreter in = expired.get(i);
+            if (in.hostState == SLEEPING) {
+               in.hostState = QUEUED;
+               queue.addLast(in);
+            }
+         }
+         expired.clear();
+
+         if (!queue.isEmpty()) {
+            Interpreter in = queue.removeFirst();
+            in.hostState = RUNNING;
+            in.woken = false;
+            steps++;
+            return in;
+         }
+         try {
+            if (wheel.size() > 0) {
+               wait(Math.max(1, wheel.getTime() + TICK - System.currentTimeMillis()));
+            } else {
+               wait();
+            }
+         } catch (InterruptedException ix) {
+            return null;
+         }
+      }
+      return null;
+   }
+
+
+   private synchronized void finish(Interpreter in, int delay) {
+      if (in.stop) {
+         in.stop = false;
+         in.running = false;
+         in.hostState = IDLE;
+         busy--;
+         notifyAll();
+      } else if (delay == 0 || in.woken) {
+         in.hostState = QUEUED;
+         queue.addLast(in);
+         notify();
+      } else if (delay > 0) {
+         in.hostState = SLEEPING;
+         wheel.schedule(in, System.currentTimeMillis() + delay);
+         notify();  // a waiting worker may need an earlier wake-up
+      } else {
+         in.hostState = IDLE;
+         busy--;
+         notifyAll();
+      }
+   }
+}
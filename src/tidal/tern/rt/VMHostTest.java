@@ -0,0 +1,186 @@
+package tidal.tern.rt;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import tidal.tern.compiler.TextCompiler;
+
+
+
+public class VMHostTest extends TestCase {
+
+   protected TextCompiler compiler = new TextCompiler();
+
+
+/**
+ * Timers must expire on the first advance at or after their deadline,
+ * including ones that start out in the upper levels of the wheel
+ */
+   public void testTimingWheel() throws Exception {
+      Random rand = new Random(7);
+      TimingWheel<Long> wheel = new TimingWheel<Long>(1, 1000);
+      List<Long> expired = new java.util.ArrayList<Long>();
+      int count = 2000;
+      for (int i = 0; i < count; i++) {
+         long deadline = 1001 + rand.nextInt(i % 3 == 0 ? 300000 : 5000);
+         wheel.schedule(deadline, deadline);
+      }
+      assertEquals(count, wheel.size());
+
+      long time = 1000;
+      int seen = 0;
+      while (wheel.size() > 0) {
+         time += 1 + rand.nextInt(50);
+         expired.clear();
+         wheel.advance(time, expired);
+         for (long deadline : expired) {
+            assertTrue(deadline <= time);
+            assertTrue(deadline > time - 51);
+         }
+         seen += expired.size();
+      }
+      assertEquals(count, seen);
+   }
+
+
+   protected Interpreter load(String tcode, InterpreterTest.TestRobot robot) throws Exception {
+      Interpreter in = new Interpreter();
+      in.setRobot(robot);
+      in.load(compiler.compile(tcode));
+      return in;
+   }
+
+
+/**
+ * Hundreds of interpreters with their own robots and variables share
+ * a few worker threads
+ */
+   public void testManyInterpreters() throws Exception {
+      VMHost host = new VMHost(4);
+      int count = 400;
+      Interpreter [] ins = new Interpreter[count];
+      InterpreterTest.Recorder [] recorders = new InterpreterTest.Recorder[count];
+      InterpreterTest.TestRobot [] robots = new InterpreterTest.TestRobot[count];
+
+      for (int i = 0; i < count; i++) {
+         robots[i] = new InterpreterTest.TestRobot();
+         ins[i] = load(
+            "import doJump()\n" +
+            "process main:\n{\n" +
+            "   n = " + (i % 5 + 1) + "\n" +
+            "   while n > 0:\n" +
+            "   {\n" +
+            "      doJump()\n" +
+            "      wait 5\n" +
+            "      n = n - 1\n" +
+            "   }\n" +
+            "   print " + i + "\n" +
+            "}\n", robots[i]);
+         recorders[i] = new InterpreterTest.Recorder(ins[i]);
+         ins[i].addDebugger(recorders[i]);
+      }
+      for (int i = 0; i < count; i++) {
+         host.submit(ins[i]);
+      }
+      assertTrue("Host didn't finish", host.awaitIdle(20000));
+      host.shutdown();
+
+      for (int i = 0; i < count; i++) {
+         assertEquals("[" + i + "]", recorders[i].output.toString());
+         assertTrue(recorders[i].errors.isEmpty());
+         assertEquals(i % 5 + 1, robots[i].jumps);
+         assertFalse(ins[i].isRunning());
+      }
+      assertEquals(0, host.getActiveCount());
+   }
+
+
+/**
+ * A busy loop can't keep a single worker from running other programs,
+ * and stop() takes it off the host
+ */
+   public void testFairness() throws Exception {
+      VMHost host = new VMHost(1);
+      Interpreter spin = load(
+         "process main:\n{\n" +
+         "   n = 0\n" +
+         "   while true:\n" +
+         "   {\n" +
+         "      n = n + 1\n" +
+         "   }\n" +
+         "}\n", new InterpreterTest.TestRobot());
+      Interpreter other = load(
+         "process main:\n{\n" +
+         "   wait 20\n" +
+         "   print 42\n" +
+         "}\n", new InterpreterTest.TestRobot());
+      InterpreterTest.Recorder recorder = new InterpreterTest.Recorder(other);
+      other.addDebugger(recorder);
+
+      host.submit(spin);
+      host.submit(other);
+      long start = System.currentTimeMillis();
+      while (other.isRunning() && System.currentTimeMillis() - start < 5000) {
+         Thread.sleep(5);
+      }
+      assertEquals("[42]", recorder.output.toString());
+      assertTrue(spin.isRunning());
+
+      spin.stop();
+      assertTrue("Host didn't stop", host.awaitIdle(5000));
+      assertFalse(spin.isRunning());
+      assertTrue(host.getStepCount() > 2);
+      host.shutdown();
+   }
+
+
+/**
+ * Submitting a sleeping interpreter again runs it right away, start()
+ * puts a stopped one back on its host, and clear() refuses to touch
+ * one that a worker might still be stepping
+ */
+   public void testResubmit() throws Exception {
+      VMHost host = new VMHost(2);
+      Interpreter in = load(
+         "process main:\n{\n" +
+         "   while true:\n" +
+         "   {\n" +
+         "      wait 10000\n" +
+         "   }\n" +
+         "}\n", new InterpreterTest.TestRobot());
+
+      host.submit(in);
+      long start = System.currentTimeMillis();
+      while (in.hostState != VMHost.SLEEPING && System.currentTimeMillis() - start < 5000) {
+         Thread.sleep(5);
+      }
+      assertEquals(VMHost.SLEEPING, in.hostState);
+      long steps = host.getStepCount();
+      host.submit(in);
+      start = System.currentTimeMillis();
+      while (host.getStepCount() == steps && System.currentTimeMillis() - start < 5000) {
+         Thread.sleep(5);
+      }
+      assertTrue(host.getStepCount() > steps);
+
+      try {
+         in.clear();
+         fail("clear() of an active interpreter");
+      } catch (IllegalStateException x) {
+         ;
+      }
+      in.stop();
+      assertTrue("Host didn't stop", host.awaitIdle(5000));
+      assertTrue(host.isIdle(in));
+
+      in.start();
+      assertTrue(in.isRunning());
+      assertFalse(host.isIdle(in));
+      in.stop();
+      assertTrue("Host didn't stop", host.awaitIdle(5000));
+      in.clear();
+      assertEquals(0, host.getActiveCount());
+      host.shutdown();
+   }
+}
@@ -0,0 +1,80 @@
+/*
+ * @(#) BitmapSource.java
+ * 
+ * Tangible Object Placement Codes (TopCodes)
+ * Copyright (c) 2011 Michael S. Horn
+ * 
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package topcodes;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Pixel source for color bitmaps.  Pixels are read one row at a time
+ * and converted to intensities, (r + g + b) / 3, as they are copied.
+ *
+ * @author Michael Horn
+ */
+public class BitmapSource implements PixelSource {
+
+   protected Bitmap image;
+
+   /** ARGB pixels of the row being converted */
+   protected int[] row;
+
+
+   public BitmapSource(Bitmap image) {
+      this.image = image;
+      this.row   = null;
+   }
+
+
+   public int getWidth() {
+      return image.getWidth();
+   }
+
+
+   public int getHeight() {
+      return image.getHeight();
+   }
+
+
+   public void getLuma(byte[] dest, int offset, int x, int y, int w, int h) {
+      if (row == null || row.length < w) row = new int[w];
+      for (int j=0; j<h; j++) {
+         image.getPixels(row, 0, w, x, y + j, w, 1);
+         convert(row, 0, dest, offset + j * w, w);
+      }
+   }
+
+
+/**
+ * Converts count ARGB pixels to intensities.  Multiplying by 21846 and
+ * shifting by 16 gives exactly (r + g + b) / 3 for every possible sum
+ * without a division.
+ */
+   public static void convert(int[] argb, int from, byte[] luma, int to, int count) {
+      for (int i=0; i<count; i++) {
+         int p = argb[from + i];
+         luma[to + i] = (byte)(((((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff)) * 21846) >> 16);
+      }
+   }
+}
@@ -0,0 +1,114 @@
+/*
+ * @(#) LumaSource.java
+ * 
+ * Tangible Object Placement Codes (TopCodes)
+ * Copyright (c) 2011 Michael S. Horn
+ * 
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package topcodes;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Pixel source for images that are already grayscale, such as the luma
+ * (Y) plane of a camera frame.  The bytes can be held in an array or a
+ * ByteBuffer, and rows may be padded (stride >= width).
+ *
+ * @author Michael Horn
+ */
+public class LumaSource implements PixelSource {
+
+   protected byte[] array;
+   protected ByteBuffer buffer;
+   protected int offset;
+   protected int width;
+   protected int height;
+   protected int stride;
+
+
+   public LumaSource(byte[] luma, int width, int height) {
+      this(luma, 0, width, height, width);
+   }
+
+
+   public LumaSource(byte[] luma, int offset, int width, int height, int stride) {
+      this.array  = luma;
+      this.buffer = null;
+      this.offset = offset;
+      this.width  = width;
+      this.height = height;
+      this.stride = stride;
+   }
+
+
+   void wrap(byte[] luma, int width, int height) {
+      this.array  = luma;
+      this.buffer = null;
+      this.offset = 0;
+      this.width  = width;
+      this.height = height;
+      this.stride = width;
+   }
+
+
+   public LumaSource(ByteBuffer luma, int width, int height, int stride) {
+      this.array  = null;
+      this.buffer = luma;
+      this.offset = luma.position();
+      this.width  = width;
+      this.height = height;
+      this.stride = stride;
+   }
+
+
+   public int getWidth() {
+      return this.width;
+   }
+
+
+   public int getHeight() {
+      return this.height;
+   }
+
+
+/**
+ * Returns the backing array if it can be scanned in place (no offset
+ * or padding), otherwise null
+ */
+   public byte[] getArray() {
+      return (array != null && offset == 0 && stride == width)? array : null;
+   }
+
+
+   public void getLuma(byte[] dest, int doff, int x, int y, int w, int h) {
+      if (array != null) {
+         for (int j=0; j<h; j++) {
+            System.arraycopy(array, offset + (y + j) * stride + x, dest, doff + j * w, w);
+         }
+      } else {
+         ByteBuffer b = buffer.duplicate();
+         for (int j=0; j<h; j++) {
+            b.position(offset + (y + j) * stride + x);
+            b.get(dest, doff + j * w, w);
+         }
+      }
+   }
+}
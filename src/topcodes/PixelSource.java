@@ -0,0 +1,49 @@
+/*
+ * @(#) PixelSource.java
+ * 
+ * Tangible Object Placement Codes (TopCodes)
+ * Copyright (c) 2011 Michael S. Horn
+ * 
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package topcodes;
+
+
+/**
+ * A grayscale image that the scanner reads from.  The scanner only
+ * needs the intensity (0-255) of each pixel, so sources convert their
+ * pixels to one byte each as they are read.  Sources are read a row or
+ * a small region at a time, so an image never has to be copied in full.
+ *
+ * @author Michael Horn
+ */
+public interface PixelSource {
+
+   /** Returns the width of the image in pixels */
+   public int getWidth();
+
+   /** Returns the height of the image in pixels */
+   public int getHeight();
+
+/**
+ * Copies the intensities of the region (x, y, width, height) into dest
+ * starting at offset, with rows width bytes apart
+ */
+   public void getLuma(byte[] dest, int offset, int x, int y, int width, int height);
+}
@@ -0,0 +1,215 @@
+/*
+ * @(#) ScanPipeline.java
+ * 
+ * Tangible Object Placement Codes (TopCodes)
+ * Copyright (c) 2011 Michael S. Horn
+ * 
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package topcodes;
+
+import java.util.List;
+
+
+/**
+ * Scans a stream of camera frames for TopCodes on a background thread.
+ * Frames are handed over with offer() (for example from a camera
+ * preview callback) and only the most recent frame is kept waiting:
+ * if the scanner is still busy with an earlier frame, the waiting frame
+ * is dropped in favor of the new one.  The camera thread never blocks,
+ * and recognition always works on the latest picture.
+ *
+ * Frames are grayscale byte arrays, usually the luma plane of an NV21
+ * preview buffer.  Each frame is returned through the listener once
+ * the pipeline is done with it, so buffers can be recycled.
+ *
+ * @author Michael Horn
+ */
+public class ScanPipeline implements Runnable {
+
+/**
+ * Receives scan results and finished frames.  Both methods are called
+ * on the pipeline's thread.  The list of codes and the codes in it are
+ * reused for the next frame, so copy any that need to be kept.
+ */
+   public interface Listener {
+      
+      /** Called with the codes found in a frame */
+      public void codesFound(List<TopCode> codes, int width, int height);
+      
+      /** Called when the pipeline no longer needs a frame buffer */
+      public void frameReleased(byte[] frame);
+   }
+
+
+   protected Scanner scanner;
+
+   protected Listener listener;
+
+   /** Thread that scans frames (null when stopped) */
+   protected Thread thread;
+
+   /** Most recently started thread, which may still be finishing a frame */
+   protected Thread last;
+
+   /** Frame waiting to be scanned */
+   protected byte[] pending;
+
+   /** Size of the waiting frame */
+   protected int pwidth, pheight;
+
+   /** Number of frames offered, scanned, and dropped */
+   protected int offered, scanned, dropped;
+
+   /** Codes found in the last frame (recycled from frame to frame) */
+   protected List<TopCode> codes;
+
+
+   public ScanPipeline(Scanner scanner, Listener listener) {
+      this.scanner  = scanner;
+      this.listener = listener;
+      this.thread   = null;
+      this.last     = null;
+      this.pending  = null;
+      this.offered  = 0;
+      this.scanned  = 0;
+      this.dropped  = 0;
+      this.codes    = new java.util.ArrayList<TopCode>();
+   }
+
+
+/**
+ * Starts scanning frames.  After a stop() the old thread may still be
+ * finishing its frame with the same scanner and list of codes, so the
+ * new thread waits for it before scanning anything.
+ */
+   public synchronized void start() {
+      if (thread == null) {
+         final Thread previous = last;
+         thread = new Thread(new Runnable() {
+            public void run() {
+               if (previous != null) {
+                  try {
+                     previous.join();
+                  } catch (InterruptedException ix) {
+                     return;
+                  }
+               }
+               ScanPipeline.this.run();
+            }
+         }, "ScanPipeline");
+         thread.setDaemon(true);
+         last = thread;
+         thread.start();
+      }
+   }
+
+
+/**
+ * Stops the pipeline without waiting for it.  A frame that is being
+ * scanned is finished, but a waiting frame is dropped.
+ */
+   public void stop() {
+      byte[] frame;
+      synchronized (this) {
+         if (thread == null) return;
+         thread = null;
+         frame = pending;
+         pending = null;
+         notifyAll();
+      }
+      if (frame != null) listener.frameReleased(frame);
+   }
+
+
+   public synchronized boolean isRunning() {
+      return thread != null;
+   }
+
+
+/**
+ * Hands a frame to the pipeline.  Returns false if the frame was
+ * dropped right away because the pipeline is stopped.
+ */
+   public boolean offer(byte[] frame, int width, int height) {
+      byte[] old;
+      synchronized (this) {
+         offered++;
+         if (thread == null) {
+            old = frame;
+            dropped++;
+         } else {
+            old = pending;
+            if (old != null) dropped++;
+            pending = frame;
+            pwidth = width;
+            pheight = height;
+            notifyAll();
+         }
+      }
+      if (old != null) listener.frameReleased(old);
+      return old != frame;
+   }
+
+
+   public void run() {
+      Thread self = Thread.currentThread();
+      while (true) {
+         byte[] frame;
+         int width, height;
+         synchronized (this) {
+            while (pending == null && thread == self) {
+               try {
+                  wait();
+               } catch (InterruptedException ix) {
+                  return;
+               }
+            }
+            if (thread != self) return;
+            frame = pending;
+            width = pwidth;
+            height = pheight;
+            pending = null;
+         }
+         
+         try {
+            scanner.scanInto(frame, width, height, codes);
+            synchronized (this) { scanned++; }
+            listener.codesFound(codes, width, height);
+         } finally {
+            listener.frameReleased(frame);
+         }
+      }
+   }
+
+
+   public synchronized int getOfferedCount() {
+      return this.offered;
+   }
+
+
+   public synchronized int getScannedCount() {
+      return this.scanned;
+   }
+
+
+   public synchronized int getDroppedCount() {
+      return this.dropped;
+   }
+}
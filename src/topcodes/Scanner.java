@@ -25,6 +25,9 @@
 package topcodes;
 
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import android.graphics.Bitmap;
 
 
@@ -39,6 +42,15 @@ import android.graphics.Bitmap;
  */
 public class Scanner {
 
+   /** Rows used to seed a band's running sums when thresholding in parallel */
+   protected static final int SEAM_ROWS = 4;
+
+   /** Extra pixels around a code's maximum radius in a region of interest */
+   protected static final int ROI_MARGIN = 32;
+
+   /** Shared worker threads for parallel thresholding and decoding */
+   private static ExecutorService pool = null;
+   
 
    /** Total width of image */
    protected int w;
@@ -46,8 +58,26 @@ public class Scanner {
    /** Total height of image */
    protected int h;
 
-   /** Holds processed binary pixel data */
-   protected int[] data;
+   /** Intensities (0-255) of the pixels being scanned */
+   protected byte[] luma;
+
+   /** Storage for intensities copied out of a pixel source */
+   protected byte[] buffer;
+
+   /** Thresholded black (0) and white (1) pixels packed 32 per word */
+   protected int[] bits;
+
+   /** Candidate bullseye pixels packed 32 per word */
+   protected int[] marks;
+
+   /** Number of words in a row of the bit planes */
+   protected int bw;
+
+   /** Summed-area table of white pixels, (w+1) x (h+1) */
+   protected int[] sat;
+
+   /** Width (and height) of the box sampled around each point */
+   protected int sample;
 
    /** Candidate code count */
    protected int ccount;
@@ -57,6 +87,92 @@ public class Scanner {
 
    /** Maximum width of a TopCode unit in pixels */
    protected int maxu;
+
+   /** Number of horizontal bands thresholded in parallel */
+   protected int threads;
+
+   /** Downsampling factor for coarse-to-fine scans (1 = full scan) */
+   protected int scale;
+
+   /** Scans the downsampled image in coarse-to-fine mode */
+   protected Scanner coarse;
+
+   /** Scans full-resolution regions of interest in coarse-to-fine mode */
+   protected Scanner fine;
+
+   /** Codes found by the last scan indexed by center point */
+   protected SpatialGrid<TopCode> index;
+
+   /** Largest bullseye radius of the codes in the index */
+   protected float reach;
+
+   /** Scratch list for index queries */
+   protected List<TopCode> nearby;
+
+   /** Decoded TopCodes that can be reused */
+   protected List<TopCode> spare;
+
+   /** Scratch list for codes found in a region */
+   protected List<TopCode> found;
+
+   /** Regions to scan in coarse-to-fine scans (x, y, radius) */
+   protected List<int[]> seeds;
+
+   /** Seed arrays that can be reused */
+   protected List<int[]> spareSeeds;
+
+   /** Scratch row and column sums for downsampling */
+   protected byte[] drow;
+   protected int[] dacc;
+
+   /** Reusable pixel sources for scan(byte[]) and scan(Bitmap) */
+   protected LumaSource lsource;
+   protected BitmapSource bsource;
+
+   /** Runs of adjacent candidate pixels: row, first and last column */
+   protected int[] runY, runX0, runX1;
+
+   /** Union-find parent of each run, and the blob it belongs to */
+   protected int[] runParent, runCluster;
+
+   /** Number of candidate runs */
+   protected int rcount;
+
+   /** Centroid and pixel count of each blob of candidates */
+   protected int[] clusterX, clusterY, clusterN;
+
+   /** Codes from an earlier picture whose blobs are decoded first */
+   protected List<TopCode> hints;
+
+   /** Scratch space for reordering blobs */
+   protected int[] order;
+
+   /** Number of candidate blobs */
+   protected int clcount;
+
+   /** Centroids of blobs that failed to decode during this scan */
+   protected SpatialGrid<Object> failed;
+
+   /** Offset of this image within the image the failed blobs refer to */
+   protected int ox, oy;
+
+   /** True for a region scanner that shares failed blobs with its owner */
+   protected boolean region;
+
+   /** Workers for parallel decoding */
+   protected Decoder[] decoders;
+
+   /** Code decoded for each blob by the parallel workers */
+   protected TopCode[] decoded;
+
+   /** Reusable bands for thresholding */
+   protected Band[] bands;
+
+   /** Number of parallel jobs that haven't finished yet */
+   protected int pending;
+
+   /** First exception thrown by a parallel job */
+   protected Throwable failure;
    
 
 
@@ -66,10 +182,38 @@ public class Scanner {
    public Scanner() {
       this.w       = 0;
       this.h       = 0;
-      this.data    = null;
+      this.luma    = null;
+      this.buffer  = null;
+      this.bits    = null;
+      this.marks   = null;
+      this.bw      = 0;
+      this.sat     = null;
+      this.sample  = 3;
       this.ccount  = 0;
       this.tcount  = 0;
       this.maxu    = 80;
+      this.threads = 1;
+      this.scale   = 1;
+      this.coarse  = null;
+      this.fine    = null;
+      this.index   = null;
+      this.reach   = 0;
+      this.failed  = null;
+      this.region  = false;
+      this.hints   = null;
+      this.order   = null;
+      this.nearby  = new java.util.ArrayList<TopCode>();
+      this.bands   = null;
+      this.pending = 0;
+      this.failure = null;
+      this.spare   = new java.util.ArrayList<TopCode>();
+      this.found   = new java.util.ArrayList<TopCode>();
+      this.seeds   = new java.util.ArrayList<int[]>();
+      this.spareSeeds = new java.util.ArrayList<int[]>();
+      this.drow    = null;
+      this.dacc    = null;
+      this.lsource = null;
+      this.bsource = null;
    }
 
 
@@ -77,15 +221,333 @@ public class Scanner {
  * Scan the given image and return a list of all topcodes found in it.
  */
    public List<TopCode> scan(Bitmap image) {
-      this.w       = image.getWidth();
-      this.h       = image.getHeight();
-      if (data == null || data.length < w * h) {
-         this.data  = new int[w * h];
+      return scan(bitmapSource(image));
+   }
+
+
+/**
+ * Scans a grayscale image such as the luma (Y) plane at the start of
+ * an NV21 camera preview frame.  Pixels are thresholded straight from
+ * the byte array without copying or converting them.
+ */
+   public List<TopCode> scan(byte[] luma, int width, int height) {
+      return scan(lumaSource(luma, width, height));
+   }
+
+
+/**
+ * Scans a grayscale frame into the given list.  The TopCodes already
+ * in the list are recycled for the results, so scanning frame after
+ * frame of the same size into the same list allocates nothing once
+ * the scanner has warmed up.  Don't keep references to the codes in
+ * the list after the next scan.
+ */
+   public List<TopCode> scanInto(byte[] luma, int width, int height, List<TopCode> codes) {
+      return scanInto(lumaSource(luma, width, height), codes);
+   }
+
+
+/**
+ * Scans any source of grayscale pixels into the given list, recycling
+ * the TopCodes already in it (see scanInto(byte[], int, int, List)).
+ */
+   public List<TopCode> scanInto(PixelSource source, List<TopCode> codes) {
+      for (int i=0; i<codes.size(); i++) {
+         spare.add(codes.get(i));
       }
-      image.getPixels(this.data, 0, w, 0, 0, w, h);
+      codes.clear();
+      return scanSource(source, codes);
+   }
+
+
+   protected LumaSource lumaSource(byte[] luma, int width, int height) {
+      if (lsource == null) {
+         lsource = new LumaSource(luma, width, height);
+      } else {
+         lsource.wrap(luma, width, height);
+      }
+      return lsource;
+   }
+
+
+   protected BitmapSource bitmapSource(Bitmap image) {
+      if (bsource == null) {
+         bsource = new BitmapSource(image);
+      } else {
+         bsource.image = image;
+      }
+      return bsource;
+   }
+
+
+/**
+ * Scans any source of grayscale pixels.  Luma sources that hold an
+ * unpadded array are scanned in place; other sources are copied into
+ * a buffer of one byte per pixel.
+ */
+   public List<TopCode> scan(PixelSource source) {
+      return scanSource(source, new java.util.ArrayList<TopCode>());
+   }
+
+
+/**
+ * Scans a pixel source and adds the codes found to spots
+ */
+   protected List<TopCode> scanSource(PixelSource source, List<TopCode> spots) {
+      if (scale > 1) return scanCoarse(source, spots);
+      
+      this.w = source.getWidth();
+      this.h = source.getHeight();
+      byte[] array = (source instanceof LumaSource)?
+         ((LumaSource)source).getArray() : null;
+      if (array != null) {
+         allocateBits(w, h);
+         this.luma = array;
+      } else {
+         allocate(w, h);
+         source.getLuma(luma, 0, 0, 0, w, h);
+      }
+      
+      try {
+         threshold();               // run the adaptive threshold filter
+         return findCodes(spots);   // scan for topcodes
+      } finally {
+         if (array != null) this.luma = null;
+      }
+   }
+
+
+/**
+ * Scans an image using the codes found in an earlier picture of the
+ * same scene as hints.  The image is thresholded once at full
+ * resolution, and the blobs of candidate pixels around each hint are
+ * decoded first, so codes that haven't moved are usually found on the
+ * first try.  Then the rest of the image is searched, and only the
+ * blobs that aren't part of a code already found get decoded.  Hints
+ * with an invalid code (such as the expected location of a block that
+ * may or may not be there) are searched first too.  New, moved, and
+ * removed codes are handled just as in a full scan, including codes
+ * too small for a coarse-to-fine scan.  With a coarse scale set (see
+ * setCoarseScale) the hints are ignored.
+ */
+   public List<TopCode> scan(Bitmap image, List<TopCode> hints) {
+      return scan(bitmapSource(image), hints);
+   }
+
+
+   public List<TopCode> scan(PixelSource image, List<TopCode> hints) {
+      return scanHinted(image, hints, new java.util.ArrayList<TopCode>());
+   }
+
+
+/**
+ * Hinted scan into the given list, recycling the TopCodes already in
+ * it (see scanInto(byte[], int, int, List)).  The hints may be the
+ * codes from the list's previous scan.
+ */
+   public List<TopCode> scanInto(PixelSource image, List<TopCode> hints, List<TopCode> codes) {
+      for (int i=0; i<codes.size(); i++) {
+         spare.add(codes.get(i));
+      }
+      codes.clear();
+      return scanHinted(image, hints, codes);
+   }
+
+
+   protected List<TopCode> scanHinted(PixelSource image, List<TopCode> hints, List<TopCode> spots) {
+      if (hints == null || hints.isEmpty() || scale > 1) return scanSource(image, spots);
       
-      threshold();          // run the adaptive threshold filter
-      return findCodes();   // scan for topcodes
+      this.hints = hints;
+      try {
+         return scanSource(image, spots);
+      } finally {
+         this.hints = null;
+      }
+   }
+
+
+/**
+ * Coarse-to-fine scan: look for bullseyes in a downsampled copy of the
+ * image, then threshold and decode full-resolution regions of interest
+ * around each candidate.  The full-size image is never copied.
+ */
+   protected List<TopCode> scanCoarse(PixelSource image, List<TopCode> spots) {
+      this.w = image.getWidth();
+      this.h = image.getHeight();
+      this.tcount = 0;
+      resetIndex();
+      resetFailed();
+
+      clearSeeds();
+      findSeeds(image, this.scale, seeds);
+      scanRegions(image, seeds, spots);
+      return spots;
+   }
+
+
+/**
+ * Finds candidate bullseyes in a copy of the image downsampled by
+ * factor f and adds them to the list of seeds
+ */
+   protected void findSeeds(PixelSource image, int f, List<int[]> seeds) {
+      if (coarse == null) coarse = new Scanner();
+      downsample(image, f, coarse);
+      coarse.maxu = Math.max(2, (maxu + f - 1) / f);
+      coarse.threshold();
+      this.ccount = coarse.ccount;
+
+      for (int j=2; j<coarse.h-2; j++) {
+         for (int q=0; q<coarse.bw; q++) {
+            int c = coarse.candidates(q, j);
+            while (c != 0) {
+               int i = (q << 5) + Integer.numberOfTrailingZeros(c);
+               c &= c - 1;
+               addSeed(seeds, i * f + f / 2, j * f + f / 2);
+            }
+         }
+      }
+   }
+
+
+/**
+ * Thresholds and decodes a full-resolution region around each seed
+ * (x, y, radius), adding new codes to spots.  Seeds that fall inside a
+ * code that has already been found are skipped.
+ */
+   protected void scanRegions(PixelSource image, List<int[]> seeds, List<TopCode> spots) {
+      if (fine == null) fine = new Scanner();
+      fine.maxu = this.maxu;
+      fine.sample = this.sample;
+      fine.spare = this.spare;
+      fine.failed = this.failed;
+      fine.region = true;
+      
+      for (int k=0; k<seeds.size(); k++) {
+         int [] seed = seeds.get(k);
+         if (covered(seed[0], seed[1])) continue;
+         
+         int r = seed[2];
+         int x0 = Math.max(0, seed[0] - r);
+         int y0 = Math.max(0, seed[1] - r);
+         int x1 = Math.min(w, seed[0] + r);
+         int y1 = Math.min(h, seed[1] + r);
+         if (x1 - x0 < 8 || y1 - y0 < 8) continue;
+         
+         fine.w = x1 - x0;
+         fine.h = y1 - y0;
+         fine.ox = x0;
+         fine.oy = y0;
+         fine.allocate(fine.w, fine.h);
+         image.getLuma(fine.luma, 0, x0, y0, fine.w, fine.h);
+         fine.threshold();
+         
+         found.clear();
+         fine.findCodes(found);
+         for (int i=0; i<found.size(); i++) {
+            TopCode top = found.get(i);
+            top.setLocation(top.getCenterX() + x0, top.getCenterY() + y0);
+            if (!overlaps((int)top.getCenterX(), (int)top.getCenterY())) {
+               spots.add(top);
+               addToIndex(top);
+            } else {
+               spare.add(top);
+            }
+         }
+         this.tcount += fine.tcount;
+      }
+   }
+
+
+/**
+ * Adds a candidate bullseye location unless an existing seed is already
+ * close enough that both belong to the same code.
+ */
+   protected void addSeed(List<int[]> seeds, int x, int y) {
+      for (int k=0; k<seeds.size(); k++) {
+         int [] seed = seeds.get(k);
+         int dx = seed[0] - x;
+         int dy = seed[1] - y;
+         if (dx * dx + dy * dy <= maxu * maxu) return;
+      }
+      seeds.add(seed(x, y, 4 * maxu + ROI_MARGIN));
+   }
+
+
+/**
+ * Returns a seed array for the given region, reusing a spare one
+ */
+   protected int[] seed(int x, int y, int r) {
+      int n = spareSeeds.size();
+      int [] seed = (n > 0)? spareSeeds.remove(n - 1) : new int[3];
+      seed[0] = x;
+      seed[1] = y;
+      seed[2] = r;
+      return seed;
+   }
+
+
+/**
+ * Empties the seed list, keeping its arrays for reuse
+ */
+   protected void clearSeeds() {
+      for (int k=0; k<seeds.size(); k++) {
+         spareSeeds.add(seeds.get(k));
+      }
+      seeds.clear();
+   }
+
+
+/**
+ * Averages f x f blocks of the image into the target scanner's pixel
+ * data.  Rows are read from the source one at a time.
+ */
+   protected void downsample(PixelSource image, int f, Scanner target) {
+      int sw = w / f;
+      int sh = h / f;
+      if (drow == null || drow.length < w) drow = new byte[w];
+      if (dacc == null || dacc.length < sw) dacc = new int[sw];
+      byte [] row = drow;
+      int [] acc = dacc;
+      java.util.Arrays.fill(acc, 0, sw, 0);
+
+      target.w = sw;
+      target.h = sh;
+      target.allocate(sw, sh);
+
+      for (int j=0; j<sh*f; j++) {
+         image.getLuma(row, 0, 0, j, w, 1);
+         for (int i=0; i<sw*f; i++) {
+            acc[i / f] += row[i] & 0xff;
+         }
+         if (j % f == f - 1) {
+            for (int i=0; i<sw; i++) {
+               target.luma[(j / f) * sw + i] = (byte)(acc[i] / (f * f));
+               acc[i] = 0;
+            }
+         }
+      }
+   }
+
+
+/**
+ * Makes sure the pixel buffer and bit planes can hold an image of the
+ * given size
+ */
+   protected void allocate(int width, int height) {
+      if (buffer == null || buffer.length < width * height) {
+         this.buffer = new byte[width * height];
+      }
+      this.luma = buffer;
+      allocateBits(width, height);
+   }
+
+
+   protected void allocateBits(int width, int height) {
+      this.bw = (width + 31) >> 5;
+      if (bits == null || bits.length < bw * height) {
+         this.bits = new int[bw * height];
+         this.marks = new int[bw * height];
+      }
    }
 
 
@@ -122,9 +584,49 @@ public class Scanner {
       this.maxu = (int)Math.ceil(f);
    }
 
+
+/**
+ * Sets the downsampling factor for coarse-to-fine scans.  With a
+ * factor of 2 or 4 the scanner first looks for bullseyes in a reduced
+ * copy of the image, and then thresholds and decodes only the
+ * full-resolution regions around them.  On large photos this is much
+ * faster and uses far less memory, especially together with
+ * setMaxCodeDiameter().  Codes need to be at least 2 * scale pixels per
+ * unit to be seen in the reduced image.  The default is 1 (full scan).
+ */
+   public void setCoarseScale(int scale) {
+      this.scale = Math.max(1, scale);
+   }
+   
+
+/**
+ * Sets the width in pixels of the square box that is averaged for
+ * each sample taken while decoding a code.  The default is 3.  Larger
+ * odd sizes smooth out noise for big codes in high resolution photos.
+ * They are served in constant time from an integral image that the
+ * scanner builds once per scan.
+ */
+   public void setSampleSize(int size) {
+      this.sample = Math.max(3, size | 1);
+   }
+
+
+/**
+ * Sets the number of threads used to threshold an image.  The image
+ * is split into horizontal bands that are processed concurrently and
+ * then stitched back together at the seams, re-thresholding rows below
+ * each seam until the running sums line up, so the binary output is
+ * the same as a single-threaded scan.  Candidate clusters are also
+ * decoded in parallel, giving the same codes in the same order as a
+ * sequential scan.  The default is one (sequential).
+ */
+   public void setThreadCount(int threads) {
+      this.threads = Math.max(1, threads);
+   }
+
    
 /**
- * Returns the number of candidate topcodes found during a scan
+ * Returns the number of candidate pixels marked during a scan
  */
    protected int getCandidateCount() {
       return this.ccount;
@@ -132,7 +634,7 @@ public class Scanner {
 
 
 /**
- * Returns the number of topcodes tested during a scan
+ * Returns the number of candidate blobs decoded during a scan
  */
    protected int getTestedCount() {
       return this.tcount;
@@ -143,8 +645,7 @@ public class Scanner {
  * Binary (thresholded black/white) value for pixel (x,y)   
  */
    protected int getBW(int x, int y) {
-      int pixel = data[y * w + x];
-      return (pixel >> 24) & 0x01;
+      return (bits[y * bw + (x >> 5)] >>> (x & 31)) & 0x01;
    }
 
    
@@ -154,16 +655,7 @@ public class Scanner {
  */
    protected int getSample3x3(int x, int y) {
       if (x < 1 || x > w-2 || y < 1 || y >= h-2) return 0;
-      int pixel, sum = 0;
-      
-      for (int j=y-1; j<=y+1; j++) {
-         for (int i=x-1; i<=x+1; i++) {
-            pixel = data[j * w + i];
-            if ((pixel & 0x01000000) > 0) {
-               sum += 0xff;
-            }
-         }
-      }
+      int sum = count3x3(x, y) * 0xff;
       //return (sum >= 5) ? 1 : 0;
       return (sum / 9);
    }
@@ -175,15 +667,105 @@ public class Scanner {
  */
    protected int getBW3x3(int x, int y) { 
       if (x < 1 || x > w-2 || y < 1 || y >= h-2) return 0;
-      int pixel, sum = 0;
+      return (count3x3(x, y) >= 5) ? 1 : 0;
+   }
+
+
+/**
+ * Average of thresholded pixels in a box around (x,y) using the
+ * current sample size.  Returned value is between 0 (black) and 255
+ * (white).
+ */
+   protected int getSample(int x, int y) {
+      if (sample == 3) return getSample3x3(x, y);
+      int r = sample >> 1;
+      if (x < r || x >= w-r || y < r || y >= h-r) return 0;
+      return countBox(x, y, r) * 0xff / (sample * sample);
+   }
+
+
+/**
+ * Majority of thresholded pixels in a box around (x,y) using the
+ * current sample size.  Returned value is either 0 (black) or 1 (white).
+ */
+   protected int getBWSample(int x, int y) {
+      if (sample == 3) return getBW3x3(x, y);
+      int r = sample >> 1;
+      if (x < r || x >= w-r || y < r || y >= h-r) return 0;
+      return (countBox(x, y, r) * 2 > sample * sample) ? 1 : 0;
+   }
+
+
+/**
+ * Number of white pixels in the box of radius r around (x,y) in
+ * constant time from the summed-area table
+ */
+   protected int countBox(int x, int y, int r) {
+      int sw = w + 1;
+      int top = (y - r) * sw;
+      int bottom = (y + r + 1) * sw;
+      return (sat[bottom + x + r + 1] - sat[bottom + x - r] -
+              sat[top + x + r + 1] + sat[top + x - r]);
+   }
+
+
+/**
+ * Builds the summed-area table of white pixels from the bit plane
+ */
+   protected void integrate() {
+      int sw = w + 1;
+      if (sat == null || sat.length < sw * (h + 1)) {
+         this.sat = new int[sw * (h + 1)];
+      }
+      for (int i=0; i<sw; i++) {
+         sat[i] = 0;
+      }
       
-      for (int j=y-1; j<=y+1; j++) {
-         for (int i=x-1; i<=x+1; i++) {
-            pixel = data[j * w + i];
-            sum += ((pixel >> 24) & 0x01);
+      for (int j=0; j<h; j++) {
+         int k = (j + 1) * sw;
+         int row = j * bw;
+         int sum = 0;
+         sat[k] = 0;
+         for (int i=0; i<w; i++) {
+            sum += (bits[row + (i >> 5)] >>> (i & 31)) & 0x01;
+            sat[k + i + 1] = sat[k + i + 1 - sw] + sum;
          }
       }
-      return (sum >= 5) ? 1 : 0;
+   }
+
+
+/**
+ * Number of white pixels in the 3x3 region around (x,y), counted a
+ * row at a time with word-level bit operations.
+ */
+   protected int count3x3(int x, int y) {
+      int i = x - 1;
+      int shift = i & 31;
+      int k = (y - 1) * bw + (i >> 5);
+      int row, sum = 0;
+      
+      for (int j=0; j<3; j++) {
+         row = bits[k] >>> shift;
+         if (shift > 29) row |= bits[k + 1] << (32 - shift);
+         sum += Integer.bitCount(row & 0x07);
+         k += bw;
+      }
+      return sum;
+   }
+
+
+/**
+ * Returns the candidate pixels in word q of row j whose four
+ * neighbors are also candidates, as a bit mask.
+ */
+   protected int candidates(int q, int j) {
+      int k = j * bw + q;
+      int c = marks[k];
+      if (c == 0) return 0;
+      
+      int left = (c << 1) | ((q > 0) ? (marks[k - 1] >>> 31) : 0);
+      int right = (c >>> 1) | ((q < bw - 1) ? (marks[k + 1] << 31) : 0);
+      return c & left & right & marks[k - bw] & marks[k + bw];
    }
 
 /**
@@ -194,186 +776,752 @@ public class Scanner {
  * EuroPARC Technical Report EPC-93-110
  */
    protected void threshold() {
+      int bands = Math.min(threads, h / (SEAM_ROWS * 4));
+      
+      if (bands <= 1) {
+         Band band = getBand(0);
+         band.init(0, h);
+         band.work();
+         this.ccount = band.ccount;
+      } else {
+         thresholdParallel(bands);
+      }
+      
+      if (sample > 3) integrate();
+   }
+
+
+/**
+ * Thresholds the image as a number of horizontal bands in parallel.
+ * Each row's running sum depends on every pixel before it, so each
+ * band (after the first) seeds its sums by sweeping a few raw rows
+ * above the band.  Once all bands finish, the first rows of each
+ * band are re-thresholded with the exact sums carried in from the
+ * band above until they agree with what the band computed.
+ */
+   protected void thresholdParallel(int bands) {
+      for (int b=bands-1; b>=0; b--) {
+         getBand(b).init(b * h / bands, (b + 1) * h / bands);
+      }
+      Band [] list = this.bands;
+      runJobs(list, bands);
+      
+      this.ccount = list[0].ccount;
+      for (int b=1; b<bands; b++) {
+         list[b].stitch(list[b - 1]);
+         this.ccount += list[b].ccount;
+      }
+   }
 
-      int pixel, r, g, b, a;
-      int threshold, sum = 128;
+
+/**
+ * Thresholds a single image row into the bit planes.  The running sum
+ * is carried in from the previous row, and the sums for the row above
+ * come from the given array (null for the first row of the image).
+ * This row's sums are saved in the sums array.  Returns the running
+ * sum at the end of the row.
+ */
+   protected int thresholdRow(Band band, int j, int sum, int[] above, int[] sums) {
+
+      int a;
+      int threshold;
       int s = 30;
-      int k;
+      int k, x, xm;
       int b1, w1, b2, level, dk;
+      int row = j * bw;
+      
+      level = b1 = b2 = w1 = 0;
 
-      this.ccount = 0;
+      for (int i=0; i<bw; i++) {
+         bits[row + i] = 0;
+         marks[row + i] = 0;
+      }
 
-      for (int j=0; j<h; j++) {
-         level = b1 = b2 = w1 = 0;
+      //----------------------------------------
+      // Process rows back and forth (alternating
+      // left-to-right, right-to-left)
+      //----------------------------------------
+      x = (j % 2 == 0) ? 0 : w-1;
+      k = x + (j * w);
+         
+      for (int i=0; i<w; i++) { 
 
          //----------------------------------------
-         // Process rows back and forth (alternating
-         // left-to-right, right-to-left)
+         // Calculate pixel intensity (0-255)
          //----------------------------------------
-         k = (j % 2 == 0) ? 0 : w-1;
-         k += (j * w);
-         
-         for (int i=0; i<w; i++) { 
-
-            //----------------------------------------
-            // Calculate pixel intensity (0-255)
-            //----------------------------------------
-            pixel = data[k];
-            r = (pixel >> 16) & 0xff;
-            g = (pixel >> 8) & 0xff;
-            b = pixel & 0xff;
-            a = (r + g + b) / 3;
-            //a = r;
+         a = luma[k] & 0xff;
             
-            //----------------------------------------
-            // Calculate sum as an approximate sum
-            // of the last s pixels
-            //----------------------------------------
-            sum += a - (sum / s);
+         //----------------------------------------
+         // Calculate sum as an approximate sum
+         // of the last s pixels
+         //----------------------------------------
+         sum += a - (sum / s);
+         sums[x] = sum;
          
-            //----------------------------------------
-            // Factor in sum from the previous row
-            //----------------------------------------
-            if (k >= w) {
-               threshold = (sum + (data[k-w] & 0xffffff)) / (2*s);
-            } else {
-               threshold = sum / s;
-            }
+         //----------------------------------------
+         // Factor in sum from the previous row
+         //----------------------------------------
+         if (above != null) {
+            threshold = (sum + above[x]) / (2*s);
+         } else {
+            threshold = sum / s;
+         }
             
-            //----------------------------------------
-            // Compare the average sum to current pixel
-            // to decide black or white
-            //----------------------------------------
-            double f = 0.85;
-            f = 0.975;
-            a = (a < threshold * f)? 0 : 1;
-
-            //----------------------------------------
-            // Repack pixel data with binary data in 
-            // the alpha channel, and the running sum
-            // for this pixel in the RGB channels
-            //----------------------------------------
-            data[k] = (a << 24) + (sum & 0xffffff);
-
-            switch (level) {
+         //----------------------------------------
+         // Compare the average sum to current pixel
+         // to decide black or white
+         //----------------------------------------
+         double f = 0.85;
+         f = 0.975;
+         a = (a < threshold * f)? 0 : 1;
+
+         //----------------------------------------
+         // Pack the binary value into the bit plane
+         //----------------------------------------
+         bits[row + (x >> 5)] |= (a << (x & 31));
+
+         switch (level) {
                
-            // On a white region. No black pixels yet
-            case 0:
-               if (a == 0) {  // First black encountered
-                  level = 1;
-                  b1 = 1;
-                  w1 = 0;
-                  b2 = 0;
-               }
-               break;
+         // On a white region. No black pixels yet
+         case 0:
+            if (a == 0) {  // First black encountered
+               level = 1;
+               b1 = 1;
+               w1 = 0;
+               b2 = 0;
+            }
+            break;
 
-            // On first black region
-            case 1:
-               if (a == 0) {
-                  b1++;
-               } else {
-                  level = 2;
-                  w1 = 1;
-               }
-               break;
+         // On first black region
+         case 1:
+            if (a == 0) {
+               b1++;
+            } else {
+               level = 2;
+               w1 = 1;
+            }
+            break;
 
-            // On second white region (bulls-eye of a code?)
-            case 2:
-               if (a == 0) {
-                  level = 3;
-                  b2 = 1;
-               } else {
-                  w1++;
-               }
-               break;
+         // On second white region (bulls-eye of a code?)
+         case 2:
+            if (a == 0) {
+               level = 3;
+               b2 = 1;
+            } else {
+               w1++;
+            }
+            break;
                
-            // On second black region
-            case 3:
-               if (a == 0) {
-                  b2++;
-               }
-               // This could be a top code
-               else {
-                  int mask;
-                  if (b1 >= 2 && b2 >= 2 &&  // less than 2 pixels... not interested
-                      b1 <= maxu && b2 <= maxu && w1 <= (maxu + maxu) &&
-                      Math.abs(b1 + b2 - w1) <= (b1 + b2) &&
-                      Math.abs(b1 + b2 - w1) <= w1 &&
-                      Math.abs(b1 - b2) <= b1 &&
-                      Math.abs(b1 - b2) <= b2) {
-                     mask = 0x2000000;
-
-                     dk = 1 + b2 + w1/2;
-                     if (j % 2 == 0) {
-                        dk = k - dk; 
-                     } else {
-                        dk = k + dk;
-                     }
-                     
-                     data[dk - 1] |= mask;
-                     data[dk] |= mask;
-                     data[dk + 1] |= mask;
-                     ccount += 3;  // count candidate codes
+         // On second black region
+         case 3:
+            if (a == 0) {
+               b2++;
+            }
+            // This could be a top code
+            else {
+               if (b1 >= 2 && b2 >= 2 &&  // less than 2 pixels... not interested
+                   b1 <= maxu && b2 <= maxu && w1 <= (maxu + maxu) &&
+                   Math.abs(b1 + b2 - w1) <= (b1 + b2) &&
+                   Math.abs(b1 + b2 - w1) <= w1 &&
+                   Math.abs(b1 - b2) <= b1 &&
+                   Math.abs(b1 - b2) <= b2) {
+
+                  dk = 1 + b2 + w1/2;
+                  if (j % 2 == 0) {
+                     xm = x - dk; 
+                  } else {
+                     xm = x + dk;
+                  }
+                  
+                  for (dk = xm - 1; dk <= xm + 1; dk++) {
+                     marks[row + (dk >> 5)] |= (1 << (dk & 31));
                   }
-                  b1 = b2;
-                  w1 = 1;
-                  b2 = 0;
-                  level = 2;
+                  band.ccount += 3;  // count candidate codes
                }
-               break;
+               b1 = b2;
+               w1 = 1;
+               b2 = 0;
+               level = 2;
             }
+            break;
+         }
             
+         if (j % 2 == 0) {
+            k++;
+            x++;
+         } else {
+            k--;
+            x--;
+         }
+      }
+      return sum;
+   }
+
+
+/**
+ * Returns the i-th reusable band, creating it if necessary
+ */
+   protected Band getBand(int i) {
+      if (bands == null || bands.length <= i) {
+         Band [] list = new Band[Math.max(i + 1, threads)];
+         if (bands != null) System.arraycopy(bands, 0, list, 0, bands.length);
+         this.bands = list;
+      }
+      if (bands[i] == null) bands[i] = new Band();
+      return bands[i];
+   }
+
+
+/**
+ * A horizontal band of image rows [j0, j1) to be thresholded.  Bands
+ * are kept from scan to scan, and their row buffers are reused as
+ * long as the image isn't wider than before.
+ */
+   class Band extends Job {
+
+      /** First row and one past the last row of the band */
+      int j0, j1;
+
+      /** Candidate code count for the band */
+      int ccount;
+
+      /** Running sum carried into each row of the band */
+      int [] starts;
+
+      /** Candidate counts for each row of the band */
+      int [] counts;
+
+      /** Running sums for the last row of the band */
+      int [] tail;
+
+      /** Row buffers used while thresholding (r0, r1) and stitching (s0, s1) */
+      int [] r0, r1, s0, s1;
+      
+      
+      Band() {
+         this.starts = new int[0];
+         this.counts = new int[0];
+      }
+
+
+      void init(int j0, int j1) {
+         this.j0 = j0;
+         this.j1 = j1;
+         this.ccount = 0;
+         this.tail = null;
+         if (counts.length < j1 - j0) {
+            this.starts = new int[j1 - j0];
+            this.counts = new int[j1 - j0];
+         }
+         this.r0 = row(r0);
+         this.r1 = row(r1);
+         this.s0 = row(s0);
+         this.s1 = row(s1);
+      }
+
+
+      int [] row(int [] buffer) {
+         return (buffer == null || buffer.length < w) ? new int[w] : buffer;
+      }
+
+      
+      void work() {
+         int [] above = null;
+         int [] sums = r0;
+         int [] temp;
+         int sum = 128;
+
+         // seed the running sums from the rows above the band
+         if (j0 > 0) {
+            above = r1;
+            for (int j=j0-SEAM_ROWS; j<j0; j++) {
+               for (int i=0; i<w; i++) {
+                  int x = (j % 2 == 0) ? i : w - 1 - i;
+                  int a = luma[j * w + x] & 0xff;
+                  sum += a - (sum / 30);
+                  above[x] = sum;
+               }
+            }
+         }
+         
+         for (int j=j0; j<j1; j++) {
+            int count = ccount;
+            starts[j - j0] = sum;
+            sum = thresholdRow(this, j, sum, above, sums);
+            counts[j - j0] = ccount - count;
+            temp = above;
+            above = sums;
+            sums = (temp == null) ? r1 : temp;
+         }
+         this.tail = above;
+      }
+
+
+/**
+ * Re-thresholds the first rows of this band using the exact sums of
+ * the (already final) band above.  A row's running sums depend only on
+ * the sum carried into it, so once that matches what the band started
+ * the row with, the row is re-thresholded one last time (the row above
+ * it changed) and every following row is already exact.  Usually that
+ * happens within the first few rows; at worst the whole band is redone.
+ */
+      void stitch(Band prev) {
+         int [] above = prev.tail;
+         int [] sums = s0;
+         int sum = above[(j0 % 2 == 0) ? 0 : w - 1];
+         
+         for (int j=j0; j<j1; j++) {
+            boolean converged = (sum == starts[j - j0]);
+            ccount -= counts[j - j0];
+            sum = thresholdRow(this, j, sum, above, sums);
             
-            k += (j % 2 == 0) ? 1 : -1;
+            if (converged) return;
+            if (j == j1 - 1) this.tail = sums;
+            above = sums;
+            sums = (sums == s0) ? s1 : s0;
+         }
+      }
+   }
+
+
+/**
+ * Runs the first n jobs on the shared pool and waits for all of them
+ * to finish.  The jobs are plain Runnables handed straight to the pool,
+ * so no task handles are allocated for them.  The wait isn't cut short
+ * by an interrupt, since the jobs are still using this scanner's
+ * buffers; the thread's interrupt status is restored afterwards.
+ */
+   protected void runJobs(Job [] jobs, int n) {
+      synchronized (this) {
+         this.pending = n;
+         this.failure = null;
+      }
+      for (int i=0; i<n; i++) {
+         getPool().execute(jobs[i]);
+      }
+      
+      boolean interrupted = false;
+      synchronized (this) {
+         while (pending > 0) {
+            try {
+               wait();
+            } catch (InterruptedException ix) {
+               interrupted = true;
+            }
          }
       }
+      if (interrupted) Thread.currentThread().interrupt();
+      if (failure != null) throw new RuntimeException(failure);
    }
+
+
+   private synchronized void jobDone(Throwable t) {
+      if (t != null && failure == null) failure = t;
+      if (--pending == 0) notifyAll();
+   }
+
+
+/**
+ * A piece of a parallel scan.  run() does the work on a pool thread and
+ * reports back to runJobs(); work() can also be called directly.
+ */
+   abstract class Job implements Runnable {
+
+      abstract void work();
+
+
+      public final void run() {
+         Throwable t = null;
+         try {
+            work();
+         } catch (Throwable x) {
+            t = x;
+         } finally {
+            jobDone(t);
+         }
+      }
+   }
+
+
+   private static synchronized ExecutorService getPool() {
+      if (pool == null) {
+         pool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactory() {
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "Scanner");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      }
+      return pool;
+   }
+   
       
 /**
  * Scan the image line by line looking for TopCodes   
  */
    protected List<TopCode> findCodes() {
+      return findCodes(new java.util.ArrayList<TopCode>());
+   }
+
+
+/**
+ * Groups the candidate pixels into blobs and decodes each blob once at
+ * its centroid, in the order the line-by-line sweep reaches them.  A
+ * blob is skipped if its centroid lies inside a code that has already
+ * been found, or if it failed to decode before.  The TopCodes found are
+ * added to spots, taking TopCode objects from the spare list when
+ * possible.
+ */
+   protected List<TopCode> findCodes(List<TopCode> spots) {
       this.tcount = 0;
-      List<TopCode> spots = new java.util.ArrayList<TopCode>();
+      resetIndex();
+      if (!region) resetFailed();
+      clusterCandidates();
+      if (hints != null) prioritize(hints);
+      if (threads > 1 && clcount > 1) return findCodesParallel(spots);
+
+      TopCode spot = obtain();
+      for (int c=0; c<clcount; c++) {
+         int x = clusterX[c];
+         int y = clusterY[c];
+         if (overlaps(x, y) || hasFailed(x, y)) continue;
+         this.tcount++;
+         spot.decode(this, x, y);
+         if (spot.isValid()) {
+            spots.add(spot);
+            addToIndex(spot);
+            spot = obtain();
+         } else {
+            failed.add(Boolean.TRUE, x + ox, y + oy);
+         }
+      }
+      spare.add(spot);
+      return spots;
+   }
+
+
+   protected TopCode obtain() {
+      int n = spare.size();
+      return (n > 0)? spare.remove(n - 1) : new TopCode();
+   }
+
+
+/**
+ * Parallel version of findCodes() for multiple cores.  The blobs are
+ * decoded concurrently, then accepted in sweep order with the same
+ * tests as the sequential scan, so the result doesn't depend on the
+ * number of threads.
+ */
+   protected List<TopCode> findCodesParallel(List<TopCode> spots) {
+      int workers = Math.min(threads, clcount);
+      if (decoders == null || decoders.length < workers) {
+         Decoder [] list = new Decoder[workers];
+         if (decoders != null) System.arraycopy(decoders, 0, list, 0, decoders.length);
+         this.decoders = list;
+      }
+      if (decoded == null || decoded.length < clcount) {
+         this.decoded = new TopCode[Math.max(clcount, 64)];
+      }
+      for (int d=0; d<workers; d++) {
+         if (decoders[d] == null) decoders[d] = new Decoder();
+         decoders[d].init(d, workers);
+      }
+
+      // hand out spare codes so that workers rarely allocate
+      for (int n=spare.size()-1, d=0; n>=0; n--, d=(d + 1) % workers) {
+         decoders[d].pool.add(spare.remove(n));
+      }
+
+      runJobs(decoders, workers);
+
+      for (int c=0; c<clcount; c++) {
+         TopCode top = decoded[c];
+         decoded[c] = null;
+         if (top == null) continue;
+         if (top.isValid() && !overlaps(clusterX[c], clusterY[c])) {
+            spots.add(top);
+            addToIndex(top);
+         } else {
+            if (!top.isValid()) failed.add(Boolean.TRUE, clusterX[c] + ox, clusterY[c] + oy);
+            spare.add(top);
+         }
+      }
+      for (int d=0; d<workers; d++) {
+         this.tcount += decoders[d].tested;
+         decoders[d].release();
+      }
+      return spots;
+   }
+
+
+/**
+ * Groups the candidate pixels into blobs of touching pixels and finds
+ * the centroid of each one.  Each row's candidates are collected into
+ * runs, and runs that touch a run in the row above are joined
+ * (union-find).  Blobs are numbered in the order of their first pixel.
+ */
+   protected void clusterCandidates() {
+      this.rcount = 0;
+      int prev0 = 0, prev1 = 0;   // runs of the previous row
 
-      TopCode spot = new TopCode();
-      int k = w * 2;
       for (int j=2; j<h-2; j++) {
-         for (int i=0; i<w; i++) {
-            if ((data[k] & 0x2000000) > 0) {
-               if ((data[k-1] & 0x2000000) > 0 &&
-                   (data[k+1] & 0x2000000) > 0 &&
-                   (data[k-w] & 0x2000000) > 0 &&
-                   (data[k+w] & 0x2000000) > 0) {
-/*
-               if ((data[k-w] & 0x2000000) > 0 ||
-                   (data[k+w] & 0x2000000) > 0)) {
-*/                    
-                  if (!overlaps(spots, i, j)) {
-                     this.tcount++;
-                     spot.decode(this, i, j);
-                     if (spot.isValid()) {
-                        spots.add(spot);
-                        spot = new TopCode();
-                     }
-                  }
+         int row0 = rcount;
+         for (int q=0; q<bw; q++) {
+            int c = candidates(q, j);
+            while (c != 0) {
+               int i = (q << 5) + Integer.numberOfTrailingZeros(c);
+               c &= c - 1;
+               if (rcount > row0 && runX1[rcount - 1] == i - 1) {
+                  runX1[rcount - 1] = i;
+               } else {
+                  if (runY == null || runY.length == rcount) growRuns();
+                  runY[rcount] = j;
+                  runX0[rcount] = i;
+                  runX1[rcount] = i;
+                  runParent[rcount] = rcount;
+                  rcount++;
+               }
+            }
+         }
+
+         // join runs that touch runs in the row above (8-connected)
+         if (prev1 > prev0 && runY[prev0] == j - 1) {
+            int p = prev0;
+            for (int r=row0; r<rcount; r++) {
+               while (p < prev1 && runX1[p] < runX0[r] - 1) p++;
+               for (int k=p; k<prev1 && runX0[k] <= runX1[r] + 1; k++) {
+                  union(r, k);
                }
             }
-            k++;
          }
+         prev0 = row0;
+         prev1 = rcount;
+      }
+
+      // number the blobs and sum up their pixels
+      this.clcount = 0;
+      if (clusterX == null || clusterX.length < rcount) {
+         int n = (runY == null)? 0 : runY.length;
+         this.clusterX = new int[n];
+         this.clusterY = new int[n];
+         this.clusterN = new int[n];
+      }
+      for (int r=0; r<rcount; r++) {
+         int root = find(r);
+         int c = (root == r)? clcount++ : runCluster[root];
+         int n = runX1[r] - runX0[r] + 1;
+         if (root == r) {
+            clusterX[c] = clusterY[c] = clusterN[c] = 0;
+         }
+         runCluster[r] = c;
+         clusterX[c] += (runX0[r] + runX1[r]) * n;   // twice the sum of x
+         clusterY[c] += runY[r] * n;
+         clusterN[c] += n;
+      }
+      for (int c=0; c<clcount; c++) {
+         int n = clusterN[c];
+         clusterX[c] = (clusterX[c] + n) / (n * 2);
+         clusterY[c] = (clusterY[c] * 2 + n) / (n * 2);
+      }
+   }
+
+
+/**
+ * Moves the blobs within the radius of a hint to the front of the list
+ * of blobs, keeping the sweep order within each group
+ */
+   protected void prioritize(List<TopCode> hints) {
+      if (order == null || order.length < clcount * 3) {
+         this.order = new int[Math.max(clcount * 3, 192)];
+      }
+      int k = 0;
+      for (int pass=0; pass<2; pass++) {
+         for (int c=0; c<clcount; c++) {
+            if (nearHint(hints, clusterX[c], clusterY[c]) == (pass == 0)) {
+               order[k++] = clusterX[c];
+               order[k++] = clusterY[c];
+               order[k++] = clusterN[c];
+            }
+         }
+      }
+      for (int c=0, i=0; c<clcount; c++) {
+         clusterX[c] = order[i++];
+         clusterY[c] = order[i++];
+         clusterN[c] = order[i++];
+      }
+   }
+
+
+   protected boolean nearHint(List<TopCode> hints, int x, int y) {
+      for (int i=0; i<hints.size(); i++) {
+         TopCode hint = hints.get(i);
+         float dx = hint.getCenterX() - x;
+         float dy = hint.getCenterY() - y;
+         float r = hint.getDiameter() * 0.5f;
+         if (dx * dx + dy * dy <= r * r) return true;
+      }
+      return false;
+   }
+
+
+   protected int find(int r) {
+      while (runParent[r] != r) {
+         runParent[r] = runParent[runParent[r]];
+         r = runParent[r];
+      }
+      return r;
+   }
+
+
+   protected void union(int a, int b) {
+      a = find(a);
+      b = find(b);
+      if (a < b) runParent[b] = a;
+      else if (b < a) runParent[a] = b;
+   }
+
+
+   protected void growRuns() {
+      int n = (runY == null)? 256 : runY.length * 2;
+      int [][] arrays = { runY, runX0, runX1, runParent, runCluster };
+      for (int a=0; a<arrays.length; a++) {
+         int [] grown = new int[n];
+         if (arrays[a] != null) System.arraycopy(arrays[a], 0, grown, 0, rcount);
+         arrays[a] = grown;
+      }
+      runY = arrays[0];
+      runX0 = arrays[1];
+      runX1 = arrays[2];
+      runParent = arrays[3];
+      runCluster = arrays[4];
+   }
+
+
+/**
+ * Returns true if a blob centered at (x,y) already failed to decode
+ * during this scan (for example in an overlapping region of interest)
+ */
+   protected boolean hasFailed(int x, int y) {
+      return failed.size() > 0 && failed.nearest(x + ox, y + oy, 2) != null;
+   }
+
+
+/**
+ * Forgets the blobs that failed to decode in an earlier scan
+ */
+   protected void resetFailed() {
+      if (failed == null) {
+         failed = new SpatialGrid<Object>(w, h, maxu * 2);
+      } else {
+         failed.reset(w, h, maxu * 2);
+      }
+      this.ox = 0;
+      this.oy = 0;
+   }
+
+
+/**
+ * Decodes every n-th blob, starting with the first-th
+ */
+   class Decoder extends Job {
+
+      int first, step;
+
+      /** Number of blobs decoded */
+      int tested;
+
+      /** TopCodes to decode into */
+      List<TopCode> pool = new java.util.ArrayList<TopCode>();
+
+
+      void init(int first, int step) {
+         this.first = first;
+         this.step = step;
+         this.tested = 0;
+      }
+
+
+      void work() {
+         for (int c=first; c<clcount; c+=step) {
+            if (hasFailed(clusterX[c], clusterY[c])) continue;
+            TopCode spot = take();
+            tested++;
+            spot.decode(Scanner.this, clusterX[c], clusterY[c]);
+            decoded[c] = spot;
+         }
+      }
+
+
+      TopCode take() {
+         int n = pool.size();
+         return (n > 0)? pool.remove(n - 1) : new TopCode();
+      }
+
+
+      /** Returns unused codes to the scanner */
+      void release() {
+         spare.addAll(pool);
+         pool.clear();
       }
-      return spots;
    }
 
+
 /**
  * Returns true if point (x,y) is in an existing TopCode bullseye   
  */
-   protected boolean overlaps(List<TopCode> spots, int x, int y) {
-      for (TopCode top : spots) {
-         if (top.inBullsEye(x, y)) return true;
+   protected boolean overlaps(int x, int y) {
+      if (index.size() == 0) return false;
+      nearby.clear();
+      index.query(x, y, reach, nearby);
+      for (int i=0; i<nearby.size(); i++) {
+         if (nearby.get(i).inBullsEye(x, y)) return true;
       }
       return false;
    }
+
+
+/**
+ * Empties the code index and sizes its buckets to the maximum unit width
+ */
+   protected void resetIndex() {
+      if (index == null) {
+         index = new SpatialGrid<TopCode>(w, h, maxu * 2);
+      } else {
+         index.reset(w, h, maxu * 2);
+      }
+      this.reach = 0;
+   }
+
+
+/**
+ * Returns true if (x,y) is close enough to the center of a code that
+ * has already been found that it can't be the center of another one
+ */
+   protected boolean covered(int x, int y) {
+      if (index.size() == 0) return false;
+      nearby.clear();
+      return index.query(x, y, reach * 4, nearby) > 0;
+   }
+
+
+   protected void addToIndex(TopCode top) {
+      index.add(top, top.getCenterX(), top.getCenterY());
+      this.reach = Math.max(reach, top.unit);
+   }
+
+
+/**
+ * Returns a spatial index of the codes found by the last scan, keyed
+ * by their center points.  Use it to look up the codes near a point
+ * without walking the whole list.  The index is reused (and cleared)
+ * by the next call to scan().
+ */
+   public SpatialGrid<TopCode> getCodeIndex() {
+      return this.index;
+   }
    
 /**
  * Counts the number of vertical pixels from (x,y) until a color
@@ -381,10 +1529,10 @@ public class Scanner {
  */
    protected int ydist(int x, int y, int d) {
       int sample;
-      int start  = getBW3x3(x, y);
+      int start  = getBWSample(x, y);
 
       for (int j=y+d; j>1 && j<h-1; j+=d) {
-         sample = getBW3x3(x, j);
+         sample = getBWSample(x, j);
          if (start + sample == 1) {
             return (d > 0) ? j - y : y - j;
          }
@@ -399,10 +1547,10 @@ public class Scanner {
  */
    protected int xdist(int x, int y, int d) {
       int sample;
-      int start = getBW3x3(x, y);
+      int start = getBWSample(x, y);
       
       for (int i=x+d; i>1 && i<w-1; i+=d) {
-         sample = getBW3x3(i, y);
+         sample = getBWSample(i, y);
          if (start + sample == 1) { 
             return (d > 0) ? i - x : x - i;
          }
@@ -0,0 +1,588 @@
+package topcodes;
+
+import java.util.List;
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import junit.framework.TestCase;
+
+
+
+public class ScannerTest extends TestCase {
+
+   protected static final int WIDTH = 640;
+   protected static final int HEIGHT = 480;
+
+   private static final java.lang.management.ThreadMXBean THREADS =
+      java.lang.management.ManagementFactory.getThreadMXBean();
+
+
+/**
+ * Draws a TopCode with the given code and unit width centered at (cx, cy)
+ */
+   protected static void drawCode(int [] pixels, int code, int unit, int cx, int cy) {
+      drawCode(pixels, code, unit, cx, cy, 0);
+   }
+
+
+/**
+ * Draws a TopCode rotated clockwise (on screen) by the given angle
+ */
+   protected static void drawCode(int [] pixels, int code, int unit, int cx, int cy, double angle) {
+      float arc = (float)(2 * Math.PI / TopCode.SECTORS);
+      int r = unit * 4;
+
+      for (int y = cy - r; y <= cy + r; y++) {
+         for (int x = cx - r; x <= cx + r; x++) {
+            float dx = x - cx, dy = y - cy;
+            float d = (float)Math.sqrt(dx * dx + dy * dy);
+            boolean white;
+            if (d > r) continue;
+            else if (d < unit) white = true;
+            else if (d < unit * 2) white = false;
+            else if (d < unit * 3) white = true;
+            else {
+               double a = Math.atan2(dy, dx) - angle;
+               while (a < 0) a += 2 * Math.PI;
+               int sector = Math.min((int)(a / arc), TopCode.SECTORS - 1);
+               white = ((code >> sector) & 0x01) > 0;
+            }
+            pixels[y * WIDTH + x] = white ? 0xffe0e0e0 : 0xff202020;
+         }
+      }
+   }
+
+
+/**
+ * Creates a noisy, unevenly lit test image with a few codes on it
+ */
+   protected static int [] createImage(int [] codes) {
+      int [] pixels = new int[WIDTH * HEIGHT];
+      Random rand = new Random(42);
+
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            int v = 150 + (x + y) / 20 + rand.nextInt(30);
+            pixels[y * WIDTH + x] = 0xff000000 | (v << 16) | (v << 8) | v;
+         }
+      }
+      for (int i = 0; i < codes.length; i++) {
+         drawCode(pixels, codes[i], 7, 80 + (i % 4) * 150, 90 + (i / 4) * 150);
+      }
+      return pixels;
+   }
+
+
+   protected static String codeList(List<TopCode> spots) {
+      String s = "";
+      for (TopCode top : spots) {
+         s += top.getCode() + " ";
+      }
+      return s;
+   }
+
+
+   public void testScan() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = { valid[3].getCode(), valid[17].getCode(), valid[40].getCode() };
+      int [] pixels = createImage(codes);
+
+      Scanner scanner = new Scanner();
+      List<TopCode> spots = scanner.scan(
+         Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+      assertEquals(codes[0] + " " + codes[1] + " " + codes[2] + " ", codeList(spots));
+   }
+
+
+/**
+ * Codes drawn at known positions, sizes, and rotations decode to the
+ * same code, center, diameter, and orientation
+ */
+   public void testDecode() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = { valid[31].getCode(), valid[5].getCode(), valid[66].getCode() };
+      Scanner scanner = new Scanner();
+
+      for (int k = 0; k < 8; k++) {
+         double angle = k * Math.PI / 4 + 0.1;
+         int code = codes[k % codes.length];
+         int [] pixels = createImage(new int[0]);
+         drawCode(pixels, code, 9, 300, 200, angle);
+
+         List<TopCode> spots = scanner.scan(toLuma(pixels), WIDTH, HEIGHT);
+         assertEquals(1, spots.size());
+         TopCode top = spots.get(0);
+         assertEquals(code, top.getCode());
+         assertEquals(300, top.getCenterX(), 1);
+         assertEquals(200, top.getCenterY(), 1);
+         assertEquals(72, top.getDiameter(), 8);
+
+         double orientation = top.getOrientation();
+         while (orientation < 0) orientation += 2 * Math.PI;
+         assertEquals(angle, orientation, 0.15);
+      }
+   }
+
+
+/**
+ * Converts ARGB test pixels into a grayscale (luma) frame
+ */
+   protected static byte [] toLuma(int [] pixels) {
+      byte [] luma = new byte[pixels.length];
+      for (int i = 0; i < pixels.length; i++) {
+         int p = pixels[i];
+         luma[i] = (byte)((((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff)) / 3);
+      }
+      return luma;
+   }
+
+
+/**
+ * Scanning a luma frame must give the same result as the same image
+ * as a bitmap, also when thresholding in parallel
+ */
+   public void testLumaScan() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = new int[12];
+      for (int i = 0; i < codes.length; i++) codes[i] = valid[i * 5].getCode();
+      int [] pixels = createImage(codes);
+
+      Scanner serial = new Scanner();
+      List<TopCode> expected = serial.scan(
+         Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+      assertEquals(codes.length, expected.size());
+
+      Scanner scanner = new Scanner();
+      scanner.setThreadCount(3);
+      List<TopCode> spots = scanner.scan(toLuma(pixels), WIDTH, HEIGHT);
+      assertEquals(sorted(expected), sorted(spots));
+      for (int i = 0; i < serial.bw * HEIGHT; i++) {
+         assertEquals(serial.bits[i], scanner.bits[i]);
+      }
+
+      // Padded rows in a ByteBuffer
+      int stride = WIDTH + 16;
+      byte [] luma = toLuma(pixels);
+      java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(8 + stride * HEIGHT);
+      for (int j = 0; j < HEIGHT; j++) {
+         buffer.position(8 + j * stride);
+         buffer.put(luma, j * WIDTH, WIDTH);
+      }
+      buffer.position(8);
+      spots = new Scanner().scan(new LumaSource(buffer, WIDTH, HEIGHT, stride));
+      assertEquals(sorted(expected), sorted(spots));
+   }
+
+
+   public void testConvert() throws Exception {
+      int [] argb = new int[766];
+      byte [] luma = new byte[argb.length];
+      for (int i = 0; i < argb.length; i++) {
+         int r = Math.min(255, i), g = Math.max(0, Math.min(255, i - 255)), b = Math.max(0, i - 510);
+         argb[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+      }
+      BitmapSource.convert(argb, 0, luma, 0, argb.length);
+      for (int i = 0; i < argb.length; i++) {
+         assertEquals(i / 3, luma[i] & 0xff);
+      }
+   }
+
+
+/**
+ * Scanning into the same list must recycle its TopCodes
+ */
+   public void testScanInto() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = new int[6];
+      for (int i = 0; i < codes.length; i++) codes[i] = valid[i * 13].getCode();
+      byte [] frame = toLuma(createImage(codes));
+
+      Scanner scanner = new Scanner();
+      List<TopCode> expected = new Scanner().scan(frame, WIDTH, HEIGHT);
+      List<TopCode> spots = new java.util.ArrayList<TopCode>();
+      scanner.scanInto(frame, WIDTH, HEIGHT, spots);
+      assertEquals(sorted(expected), sorted(spots));
+
+      java.util.Set<TopCode> first = new java.util.HashSet<TopCode>(spots);
+      for (int n = 0; n < 3; n++) {
+         scanner.scanInto(frame, WIDTH, HEIGHT, spots);
+         assertEquals(sorted(expected), sorted(spots));
+         for (TopCode top : spots) {
+            assertTrue(first.contains(top));
+         }
+      }
+
+      // Once warmed up, repeated scans allocate nothing
+      long bytes = allocatedBytes();
+      for (int n = 0; n < 3; n++) {
+         scanner.scanInto(frame, WIDTH, HEIGHT, spots);
+      }
+      if (bytes >= 0) assertEquals(0, allocatedBytes() - bytes);
+
+      // Hinted scans recycle codes and seeds the same way
+      LumaSource source = new LumaSource(frame, WIDTH, HEIGHT);
+      List<TopCode> hints = new java.util.ArrayList<TopCode>(expected);
+      for (int n = 0; n < 3; n++) {
+         scanner.scanInto(source, hints, spots);
+         assertEquals(sorted(expected), sorted(spots));
+      }
+      bytes = allocatedBytes();
+      for (int n = 0; n < 3; n++) {
+         scanner.scanInto(source, hints, spots);
+      }
+      if (bytes >= 0) assertEquals(0, allocatedBytes() - bytes);
+
+      // Coarse-to-fine scans recycle codes through the same pool
+      scanner.setCoarseScale(2);
+      scanner.scanInto(frame, WIDTH, HEIGHT, spots);
+      assertEquals(sorted(expected), sorted(spots));
+   }
+
+
+/**
+ * Returns the number of bytes allocated so far by the current thread,
+ * or -1 if the VM can't tell
+ */
+   protected static long allocatedBytes() {
+      if (!(THREADS instanceof com.sun.management.ThreadMXBean)) return -1;
+      com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)THREADS;
+      if (!mx.isThreadAllocatedMemoryEnabled()) return -1;
+      return mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+
+
+/**
+ * The pipeline must drop waiting frames rather than queue them, always
+ * get to the latest frame, and hand every buffer back
+ */
+   public void testPipeline() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      final byte [] empty = toLuma(createImage(new int[0]));
+      final byte [] last = toLuma(createImage(new int[] { valid[7].getCode() }));
+      final List<String> results = new java.util.ArrayList<String>();
+      final List<byte[]> released = new java.util.ArrayList<byte[]>();
+
+      ScanPipeline pipeline = new ScanPipeline(new Scanner(), new ScanPipeline.Listener() {
+         public void codesFound(List<TopCode> codes, int width, int height) {
+            synchronized (results) { results.add(codeList(codes)); }
+            try { Thread.sleep(20); } catch (InterruptedException ix) { }
+         }
+         public void frameReleased(byte[] frame) {
+            synchronized (released) { released.add(frame); released.notifyAll(); }
+         }
+      });
+      pipeline.start();
+      
+      int frames = 30;
+      for (int i = 0; i < frames; i++) {
+         pipeline.offer((i == frames - 1)? last : empty.clone(), WIDTH, HEIGHT);
+         Thread.sleep(2);
+      }
+      synchronized (released) {
+         long end = System.currentTimeMillis() + 5000;
+         while (released.size() < frames && System.currentTimeMillis() < end) {
+            released.wait(100);
+         }
+      }
+      pipeline.stop();
+
+      assertEquals(frames, released.size());
+      assertSame(last, released.get(frames - 1));
+      assertEquals(frames, pipeline.getOfferedCount());
+      assertTrue(pipeline.getDroppedCount() > 0);
+      assertEquals(frames, pipeline.getScannedCount() + pipeline.getDroppedCount());
+      assertEquals(valid[7].getCode() + " ", results.get(results.size() - 1));
+      assertFalse(pipeline.offer(empty, WIDTH, HEIGHT));
+   }
+
+
+/**
+ * Restarting the pipeline while it is scanning must not let the old
+ * and new threads share the scanner
+ */
+   public void testPipelineRestart() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      byte [] empty = toLuma(createImage(new int[0]));
+      byte [] coded = toLuma(createImage(new int[] { valid[11].getCode() }));
+      final int [] active = new int[2];  // scans in progress, most at once
+      final List<String> results = new java.util.ArrayList<String>();
+      final List<byte[]> released = new java.util.ArrayList<byte[]>();
+
+      Scanner scanner = new Scanner() {
+         public List<TopCode> scanInto(byte[] luma, int width, int height, List<TopCode> codes) {
+            synchronized (active) {
+               active[0]++;
+               active[1] = Math.max(active[1], active[0]);
+               active.notifyAll();
+            }
+            try {
+               Thread.sleep(100);
+               return super.scanInto(luma, width, height, codes);
+            } catch (InterruptedException ix) {
+               throw new RuntimeException(ix);
+            } finally {
+               synchronized (active) { active[0]--; }
+            }
+         }
+      };
+      ScanPipeline pipeline = new ScanPipeline(scanner, new ScanPipeline.Listener() {
+         public void codesFound(List<TopCode> codes, int width, int height) {
+            synchronized (results) { results.add(codeList(codes)); }
+         }
+         public void frameReleased(byte[] frame) {
+            synchronized (released) { released.add(frame); released.notifyAll(); }
+         }
+      });
+
+      pipeline.start();
+      pipeline.offer(empty, WIDTH, HEIGHT);
+      synchronized (active) {
+         long end = System.currentTimeMillis() + 5000;
+         while (active[0] == 0 && System.currentTimeMillis() < end) active.wait(100);
+         assertEquals(1, active[0]);
+      }
+
+      pipeline.stop();
+      pipeline.start();
+      assertTrue(pipeline.offer(coded, WIDTH, HEIGHT));
+      synchronized (released) {
+         long end = System.currentTimeMillis() + 5000;
+         while (released.size() < 2 && System.currentTimeMillis() < end) released.wait(100);
+      }
+      pipeline.stop();
+
+      assertEquals(1, active[1]);
+      assertEquals(2, released.size());
+      assertSame(coded, released.get(1));
+      assertEquals(valid[11].getCode() + " ", results.get(results.size() - 1));
+   }
+
+
+/**
+ * Scanning with hints from an earlier picture must find the same codes
+ * as a full scan, whether codes were moved, added or removed
+ */
+   public void testHintScan() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = new int[8];
+      for (int i = 0; i < codes.length; i++) codes[i] = valid[i * 11].getCode();
+      Scanner scanner = new Scanner();
+      List<TopCode> hints = scanner.scan(
+         Bitmap.createBitmap(createImage(codes), WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+      assertEquals(codes.length, hints.size());
+
+      // Move one code a little and add a new one and a much smaller one
+      int [] pixels = createImage(new int[] { codes[0], codes[1], codes[2] });
+      drawCode(pixels, codes[3], 7, 80 + 3 * 150 + 6, 90 - 4);
+      for (int i = 4; i < codes.length; i++) {
+         drawCode(pixels, codes[i], 7, 80 + (i % 4) * 150, 90 + (i / 4) * 150);
+      }
+      drawCode(pixels, valid[90].getCode(), 7, 155, 390);
+      drawCode(pixels, valid[95].getCode(), 3, 590, 420);
+      Bitmap image = Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+      List<TopCode> expected = new Scanner().scan(image);
+      assertEquals(codes.length + 2, expected.size());
+      assertEquals(sorted(expected), sorted(scanner.scan(image, hints)));
+
+      // Small codes are still found when the hints come from a scan
+      // that missed them
+      List<TopCode> old = new java.util.ArrayList<TopCode>(hints);
+      for (int n = 0; n < 3; n++) {
+         assertEquals(sorted(expected), sorted(scanner.scan(image, old)));
+      }
+
+      // Remove a code so that the scanner falls back to a full scan
+      pixels = createImage(new int[] { codes[0], codes[1] });
+      image = Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+      expected = new Scanner().scan(image);
+      assertEquals(sorted(expected), sorted(scanner.scan(image, hints)));
+   }
+
+
+   protected static String sorted(List<TopCode> spots) {
+      List<String> list = new java.util.ArrayList<String>();
+      for (TopCode top : spots) {
+         list.add(top.getCode() + "@" + Math.round(top.getCenterX()) + "," +
+                  Math.round(top.getCenterY()));
+      }
+      java.util.Collections.sort(list);
+      return list.toString();
+   }
+
+
+/**
+ * The code index must find each code near its center and nothing in
+ * the empty space between codes.
+ */
+   public void testCodeIndex() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = new int[8];
+      for (int i = 0; i < codes.length; i++) codes[i] = valid[i * 9].getCode();
+      Scanner scanner = new Scanner();
+      List<TopCode> spots = scanner.scan(
+         Bitmap.createBitmap(createImage(codes), WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+      assertEquals(codes.length, spots.size());
+
+      SpatialGrid<TopCode> index = scanner.getCodeIndex();
+      assertEquals(spots.size(), index.size());
+      for (TopCode top : spots) {
+         assertSame(top, index.nearest(top.getCenterX() + 5, top.getCenterY() - 5, 20));
+      }
+      assertNull(index.nearest(155, 165, 40));
+
+      List<TopCode> near = new java.util.ArrayList<TopCode>();
+      assertEquals(2, index.query(155, 90, 80, near));
+   }
+
+
+/**
+ * Box samples served from the integral image must match brute-force
+ * counts, and larger boxes must still decode the same codes.
+ */
+   public void testSampleSize() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = { valid[5].getCode(), valid[21].getCode(), valid[60].getCode() };
+      Bitmap image = Bitmap.createBitmap(createImage(codes), WIDTH, HEIGHT,
+                                         Bitmap.Config.ARGB_8888);
+
+      Scanner scanner = new Scanner();
+      scanner.setSampleSize(5);
+      List<TopCode> spots = scanner.scan(image);
+      assertEquals(codes[0] + " " + codes[1] + " " + codes[2] + " ", codeList(spots));
+
+      Random rand = new Random(1);
+      for (int n = 0; n < 1000; n++) {
+         int x = 3 + rand.nextInt(WIDTH - 6);
+         int y = 3 + rand.nextInt(HEIGHT - 6);
+         int count = 0;
+         for (int j = y - 2; j <= y + 2; j++) {
+            for (int i = x - 2; i <= x + 2; i++) {
+               count += scanner.getBW(i, j);
+            }
+         }
+         assertEquals(count, scanner.countBox(x, y, 2));
+         assertEquals(count * 0xff / 25, scanner.getSample(x, y));
+      }
+   }
+
+
+/**
+ * Coarse-to-fine scanning must find the same codes as a full scan
+ */
+   public void testCoarseScan() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = new int[12];
+      for (int i = 0; i < codes.length; i++) codes[i] = valid[i * 8].getCode();
+      Bitmap image = Bitmap.createBitmap(createImage(codes), WIDTH, HEIGHT,
+                                         Bitmap.Config.ARGB_8888);
+
+      Scanner full = new Scanner();
+      List<TopCode> expected = full.scan(image);
+      assertEquals(codes.length, expected.size());
+
+      Scanner scanner = new Scanner();
+      scanner.setMaxCodeDiameter(80);
+      scanner.setCoarseScale(2);
+      List<TopCode> spots = scanner.scan(image);
+      assertEquals(codeList(expected), codeList(spots));
+      for (int i = 0; i < spots.size(); i++) {
+         assertEquals(expected.get(i).getCenterX(), spots.get(i).getCenterX(), 1.0f);
+         assertEquals(expected.get(i).getCenterY(), spots.get(i).getCenterY(), 1.0f);
+      }
+   }
+
+
+/**
+ * Thresholding in parallel bands must produce the same binary image
+ * and candidates as the sequential scan (within a small tolerance).
+ */
+   public void testParallelThreshold() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = new int[12];
+      for (int i = 0; i < codes.length; i++) codes[i] = valid[i * 7].getCode();
+      Bitmap image = Bitmap.createBitmap(createImage(codes), WIDTH, HEIGHT,
+                                         Bitmap.Config.ARGB_8888);
+
+      Scanner serial = new Scanner();
+      List<TopCode> expected = serial.scan(image);
+      assertEquals(codes.length, expected.size());
+
+      for (int threads = 2; threads <= 7; threads++) {
+         Scanner parallel = new Scanner();
+         parallel.setThreadCount(threads);
+         List<TopCode> spots = parallel.scan(image);
+
+         int diff = 0;
+         for (int i = 0; i < serial.bw * HEIGHT; i++) {
+            diff += Integer.bitCount(serial.bits[i] ^ parallel.bits[i]);
+            diff += Integer.bitCount(serial.marks[i] ^ parallel.marks[i]);
+         }
+         assertEquals("Mismatched pixels", 0, diff);
+         assertEquals(codeList(expected), codeList(spots));
+         assertEquals(serial.getCandidateCount(), parallel.getCandidateCount());
+      }
+   }
+
+
+/**
+ * Touching candidates are grouped into clusters, and decoding the
+ * clusters in parallel finds the same codes in the same order as the
+ * sweep.
+ */
+   public void testParallelDecode() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = new int[12];
+      for (int i = 0; i < codes.length; i++) codes[i] = valid[i * 5 + 3].getCode();
+      byte [] luma = toLuma(createImage(codes));
+
+      Scanner serial = new Scanner();
+      String expected = codeList(serial.scan(luma, WIDTH, HEIGHT));
+      assertEquals(codes.length, serial.scan(luma, WIDTH, HEIGHT).size());
+
+      for (int threads = 2; threads <= 7; threads++) {
+         Scanner parallel = new Scanner();
+         parallel.setThreadCount(threads);
+         assertEquals(expected, codeList(parallel.scan(luma, WIDTH, HEIGHT)));
+         assertTrue(parallel.clcount >= codes.length);
+         assertTrue(parallel.clcount < parallel.getCandidateCount());
+         assertEquals(serial.getTestedCount(), parallel.getTestedCount());
+      }
+
+      // an interrupt doesn't cut a parallel scan short and isn't lost
+      Scanner parallel = new Scanner();
+      parallel.setThreadCount(4);
+      Thread.currentThread().interrupt();
+      try {
+         assertEquals(expected, codeList(parallel.scan(luma, WIDTH, HEIGHT)));
+      } finally {
+         assertTrue(Thread.interrupted());
+      }
+   }
+
+
+/**
+ * Each blob of candidates is decoded at most once, and a bullseye
+ * that can't be decoded is remembered as a failed blob.
+ */
+   public void testCandidateBlobs() throws Exception {
+      TopCode [] valid = TopCode.generateCodes();
+      int [] codes = { valid[2].getCode(), 0, valid[9].getCode() };
+      byte [] luma = toLuma(createImage(codes));
+
+      for (int threads = 1; threads <= 3; threads++) {
+         Scanner scanner = new Scanner();
+         scanner.setThreadCount(threads);
+         List<TopCode> spots = scanner.scan(luma, WIDTH, HEIGHT);
+         assertEquals(valid[2].getCode() + " " + valid[9].getCode() + " ", codeList(spots));
+         assertTrue(scanner.getTestedCount() <= scanner.clcount);
+         assertTrue(scanner.clcount < scanner.getCandidateCount());
+         assertTrue(scanner.hasFailed(230, 90));
+         assertFalse(scanner.hasFailed(80, 90));
+      }
+
+      Scanner scanner = new Scanner();
+      scanner.setCoarseScale(2);
+      assertEquals(2, scanner.scan(luma, WIDTH, HEIGHT).size());
+      assertTrue(scanner.hasFailed(230, 90));
+   }
+}
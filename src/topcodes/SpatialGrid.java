@@ -0,0 +1,222 @@
+/*
+ * @(#) SpatialGrid.java
+ * 
+ * Tangible Object Placement Codes (TopCodes)
+ * Copyright (c) 2011 Michael S. Horn
+ * 
+ *           Michael S. Horn (michael.horn@tufts.edu)
+ *           Northwestern University
+ *           2120 Campus Drive
+ *           Evanston, IL 60613
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (version 2) as
+ * published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package topcodes;
+
+import java.util.List;
+
+
+/**
+ * Uniform grid of square buckets for finding items near a point in an
+ * image.  Each item is stored with an (x, y) location in the bucket
+ * that contains it, so a query only has to look at the few buckets
+ * that overlap its search radius.  Locations outside of the grid are
+ * clamped to the nearest edge bucket.
+ *
+ * @author Michael Horn
+ */
+public class SpatialGrid<T> {
+
+   /** Item stored at a location */
+   protected static class Entry<T> {
+      T item;
+      float x, y;
+
+      Entry(T item, float x, float y) {
+         this.item = item;
+         this.x = x;
+         this.y = y;
+      }
+   }
+
+   /** Width and height of a bucket */
+   protected float size;
+
+   /** Number of bucket columns */
+   protected int cols;
+
+   /** Number of bucket rows */
+   protected int rows;
+
+   /** Buckets in row-major order (null until used) */
+   protected List<Entry<T>> [] cells;
+
+   /** Indices of non-empty buckets, used to clear the grid quickly */
+   protected int [] used;
+
+   /** Number of non-empty buckets */
+   protected int ucount;
+
+   /** Number of items in the grid */
+   protected int count;
+
+   /** Entries removed by clear() for reuse */
+   protected List<Entry<T>> free;
+
+
+/**
+ * Creates an empty grid covering width x height with the given bucket size
+ */
+   public SpatialGrid(float width, float height, float size) {
+      this.count = 0;
+      this.free = new java.util.ArrayList<Entry<T>>();
+      reset(width, height, size);
+   }
+
+
+/**
+ * Empties the grid and resizes it, reusing its buckets when possible
+ */
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public void reset(float width, float height, float size) {
+      this.size = Math.max(1, size);
+      this.cols = Math.max(1, (int)Math.ceil(width / this.size));
+      this.rows = Math.max(1, (int)Math.ceil(height / this.size));
+      if (cells != null) clear();
+      if (cells == null || cells.length < cols * rows) {
+         this.cells = new List[cols * rows];
+         this.used = new int[cols * rows];
+      }
+   }
+
+
+/**
+ * Removes all items from the grid
+ */
+   public void clear() {
+      for (int i=0; i<ucount; i++) {
+         List<Entry<T>> cell = cells[used[i]];
+         for (int j=0; j<cell.size(); j++) {
+            Entry<T> e = cell.get(j);
+            e.item = null;
+            free.add(e);
+         }
+         cell.clear();
+      }
+      this.ucount = 0;
+      this.count = 0;
+   }
+
+
+/**
+ * Returns the number of items in the grid
+ */
+   public int size() {
+      return this.count;
+   }
+
+
+/**
+ * Adds an item at location (x, y)
+ */
+   public void add(T item, float x, float y) {
+      int c = column(x) + row(y) * cols;
+      List<Entry<T>> cell = cells[c];
+      if (cell == null) {
+         cell = new java.util.ArrayList<Entry<T>>(4);
+         cells[c] = cell;
+      }
+      if (cell.isEmpty()) used[ucount++] = c;
+      int n = free.size();
+      if (n > 0) {
+         Entry<T> e = free.remove(n - 1);
+         e.item = item;
+         e.x = x;
+         e.y = y;
+         cell.add(e);
+      } else {
+         cell.add(new Entry<T>(item, x, y));
+      }
+      this.count++;
+   }
+
+
+/**
+ * Appends all items within radius of (x, y) to result and returns the
+ * number of items found
+ */
+   public int query(float x, float y, float radius, List<T> result) {
+      int found = 0;
+      int c0 = column(x - radius), c1 = column(x + radius);
+      int r0 = row(y - radius),    r1 = row(y + radius);
+      float r2 = radius * radius;
+
+      for (int r=r0; r<=r1; r++) {
+         for (int c=c0; c<=c1; c++) {
+            List<Entry<T>> cell = cells[r * cols + c];
+            if (cell == null) continue;
+            for (int i=0; i<cell.size(); i++) {
+               Entry<T> e = cell.get(i);
+               float dx = e.x - x, dy = e.y - y;
+               if (dx * dx + dy * dy <= r2) {
+                  result.add(e.item);
+                  found++;
+               }
+            }
+         }
+      }
+      return found;
+   }
+
+
+/**
+ * Returns the item closest to (x, y) within radius or null if there
+ * isn't one
+ */
+   public T nearest(float x, float y, float radius) {
+      T best = null;
+      int c0 = column(x - radius), c1 = column(x + radius);
+      int r0 = row(y - radius),    r1 = row(y + radius);
+      float min = radius * radius;
+
+      for (int r=r0; r<=r1; r++) {
+         for (int c=c0; c<=c1; c++) {
+            List<Entry<T>> cell = cells[r * cols + c];
+            if (cell == null) continue;
+            for (int i=0; i<cell.size(); i++) {
+               Entry<T> e = cell.get(i);
+               float dx = e.x - x, dy = e.y - y;
+               float d = dx * dx + dy * dy;
+               if (d < min || (best == null && d <= min)) {
+                  min = d;
+                  best = e.item;
+               }
+            }
+         }
+      }
+      return best;
+   }
+
+
+   protected int column(float x) {
+      int c = (int)(x / size);
+      return (c < 0)? 0 : (c >= cols)? cols - 1 : c;
+   }
+
+
+   protected int row(float y) {
+      int r = (int)(y / size);
+      return (r < 0)? 0 : (r >= rows)? rows - 1 : r;
+   }
+}
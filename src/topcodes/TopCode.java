@@ -58,6 +58,23 @@ public class TopCode {
    /** Span of a data sector in radians */
    protected static float ARC = (2 * PI / SECTORS);
 
+   /** Number of arc adjustments tried for each unit width */
+   protected static final int ARCS = 10;
+
+   /** Fixed-point (16.16) direction vectors indexed by arc * SECTORS + sector */
+   protected static final int [] COS = new int[ARCS * SECTORS];
+   protected static final int [] SIN = new int[ARCS * SECTORS];
+
+   static {
+      for (int a = 0; a < ARCS; a++) {
+         for (int sector = 0; sector < SECTORS; sector++) {
+            float theta = ARC * sector + a * ARC * 0.1f;
+            COS[a * SECTORS + sector] = Math.round((float)Math.cos(theta) * 65536);
+            SIN[a * SECTORS + sector] = Math.round((float)Math.sin(theta) * 65536);
+         }
+      }
+   }
+
    /** The symbol's code, or -1 if invalid. */
    protected int code;
 
@@ -73,7 +90,7 @@ public class TopCode {
    /** Vertical center of a symbol */
    protected float y;
 
-   /** Buffer used to decode sectors */
+   /** Buffer used to decode sectors (allocated by the first decode) */
    protected int [] core;
 
 
@@ -86,7 +103,20 @@ public class TopCode {
       this.orientation = 0;
       this.x = 0;
       this.y = 0;
-      this.core = new int[WIDTH];
+      this.core = null;
+   }
+
+
+/**
+ * Creates a copy of another TopCode
+ */
+   public TopCode(TopCode other) {
+      this();
+      this.code = other.code;
+      this.unit = other.unit;
+      this.orientation = other.orientation;
+      this.x = other.x;
+      this.y = other.y;
    }
 
 
@@ -209,6 +239,7 @@ public class TopCode {
                    scanner.xdist(cx, cy - 1, 1) +
                    scanner.xdist(cx, cy + 1, 1));
 
+      if (core == null) core = new int[WIDTH];
       this.x = cx;
       this.y = cy;
       this.x += (right - left) / 6.0f;
@@ -219,8 +250,7 @@ public class TopCode {
 
       int c = 0;
       int maxc = 0;
-      float arca;
-      float maxa = 0;
+      int maxa = 0;
       float maxu = 0;
 
       //-----------------------------------------
@@ -229,14 +259,13 @@ public class TopCode {
       // confidence reading...
       //-----------------------------------------
       for (int u = -2; u <= 2; u++) { 
-         for (int a = 0; a < 10; a++) {
-            arca = a * ARC * 0.1f;
+         for (int a = 0; a < ARCS; a++) {
             c = readCode(scanner,
                          unit + (unit * 0.05f * u),
-                         arca);
+                         a);
             if (c > maxc) { 
                maxc = c;
-               maxa = arca;
+               maxa = a;
                maxu = unit + (unit * 0.05f * u);
             }
          }
@@ -246,7 +275,7 @@ public class TopCode {
       if (maxc > 0) {
          unit = maxu;
          readCode(scanner, unit, maxa);
-         this.code = rotateLowest(code, maxa);
+         this.code = rotateLowest(code, maxa * ARC * 0.1f);
       }
       
       return this.code;
@@ -259,28 +288,32 @@ public class TopCode {
  *
  * scanner - image scanner
  * unit    - width of a single ring (codes are 8 units wide)
- * arca    - Arc adjustment.  Rotation correction delta value.    
+ * arc     - Arc adjustment index (0 to ARCS-1).  Rotates the sample
+ *           rays by arc * ARC / ARCS radians.
  */
-   protected int readCode(Scanner scanner, float unit, float arca) {
+   protected int readCode(Scanner scanner, float unit, int arc) {
 
-      float dx, dy;  // direction vector
-      float dist;
+      int dx, dy;  // fixed-point step between samples
+      int px, py;  // fixed-point sample position
+      int cx = (int)(x * 65536) + 0x8000;
+      int cy = (int)(y * 65536) + 0x8000;
+      long u = (long)(unit * 65536);
       int c = 0;
-      int sx, sy;
       int bit, bits = 0;
+      int [] core = this.core;
       this.code = -1;
 
       for (int sector = SECTORS-1; sector >= 0; sector--) {
-         dx = (float)Math.cos(ARC * sector + arca);
-         dy = (float)Math.sin(ARC * sector + arca);
+         dx = (int)((COS[arc * SECTORS + sector] * u) >> 16);
+         dy = (int)((SIN[arc * SECTORS + sector] * u) >> 16);
+         px = cx - ((dx * 7) >> 1);
+         py = cy - ((dy * 7) >> 1);
       
          // Take 8 samples across the diameter of the symbol
          for (int i=0; i<WIDTH; i++) {
-            dist = (i - 3.5f) * unit;
-
-            sx = (int)Math.round(x + dx * dist);
-            sy = (int)Math.round(y + dy * dist);
-            core[i] = scanner.getSample3x3(sx, sy);
+            core[i] = scanner.getSample(px >> 16, py >> 16);
+            px += dx;
+            py += dy;
          }
 
          // white rings
@@ -397,7 +430,7 @@ public class TopCode {
          }
 
          // Left sample
-         sample = scanner.getBW3x3(sx - i, sy);
+         sample = scanner.getBWSample(sx - i, sy);
          if (distL <= 0) { 
             if (whiteL && sample == 0) {
                whiteL = false;
@@ -407,7 +440,7 @@ public class TopCode {
          }
 
          // Right sample
-         sample = scanner.getBW3x3(sx + i, sy);
+         sample = scanner.getBWSample(sx + i, sy);
          if (distR <= 0) { 
             if (whiteR && sample == 0) {
                whiteR = false;
@@ -417,7 +450,7 @@ public class TopCode {
          }
 
          // Up sample
-         sample = scanner.getBW3x3(sx, sy - i);
+         sample = scanner.getBWSample(sx, sy - i);
          if (distU <= 0) {
             if (whiteU && sample == 0) {
                whiteU = false;
@@ -427,7 +460,7 @@ public class TopCode {
          }
          
          // Down sample
-         sample = scanner.getBW3x3(sx, sy + i);
+         sample = scanner.getBWSample(sx, sy + i);
          if (distD <= 0) {
             if (whiteD && sample == 0) {
                whiteD = false;